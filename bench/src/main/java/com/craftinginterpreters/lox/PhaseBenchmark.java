@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//each front-end phase on its own, fed by the output of the phases before it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PhaseBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int lines;
+
+    private String source;
+    private List<Token> tokens;
+    private TokenBuffer packed;
+    private List<Stmt> statements;
+    private final LoxContext context = new LoxContext();
+
+    @Setup
+    public void setUp() {
+        source = SourceGenerator.generate(lines);
+        tokens = new Scanner(source, context).scanTokens();
+        packed = Scanner.scanPacked(source, context);
+        statements = new Parser(tokens, context).parse();
+        new Resolver(context).resolve(statements);
+        if(context.hadError) throw new IllegalStateException("Generated source does not compile.");
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, context).scanTokens();
+    }
+
+    @Benchmark
+    public TokenBuffer scanPacked() {
+        return Scanner.scanPacked(source, context);
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens, context).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> parsePacked() {
+        return new Parser(packed, context).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver(context).resolve(statements);
+        return statements;
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter interpreter = new Interpreter(context);
+        interpreter.interpret(statements, false);
+        return interpreter;
+    }
+}
@@ -0,0 +1,78 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.craftinginterpreters.lox.vm.Compiler;
+import com.craftinginterpreters.lox.vm.ObjFunction;
+import com.craftinginterpreters.lox.vm.VM;
+
+//whole-script execution on each engine; front-end and compile costs are
+//paid once in setUp
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeBenchmark {
+    @Param({"fib", "nestedLoops", "concat", "closures"})
+    String workload;
+
+    @Param({"tree", "closure", "vm"})
+    String engine;
+
+    private List<Stmt> statements;
+    private Interpreter interpreter;
+    private ExecNode[] nodes;
+    private VM vm;
+    private ObjFunction script;
+    private final LoxContext context = new LoxContext();
+
+    @Setup
+    public void setUp() {
+        statements = new Parser(new Scanner(Workloads.named(workload), context).scanTokens(), context).parse();
+        new Resolver(context).resolve(statements);
+        if(context.hadError) throw new IllegalStateException("Workload does not compile.");
+
+        interpreter = new Interpreter(context);
+        switch(engine) {
+            case "closure":
+                nodes = new ClosureCompiler(interpreter).compile(statements);
+                break;
+            case "vm":
+                vm = new VM();
+                script = new Compiler(vm).compile(statements, false);
+                break;
+        }
+    }
+
+    @Benchmark
+    public Object run() {
+        switch(engine) {
+            case "closure":
+                for(ExecNode node : nodes) {
+                    node.execute(interpreter.globals);
+                }
+                return interpreter;
+            case "vm":
+                vm.interpret(script);
+                return vm;
+            default:
+                interpreter.interpret(statements, false);
+                return interpreter;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.craftinginterpreters.lox;
+
+//builds synthetic but valid Lox programs of a given size for the phase
+//benchmarks. Every unit declares its own names, so any number of units
+//can be scanned, parsed, resolved and run back to back.
+final class SourceGenerator {
+    private static final String[] UNIT = {
+        "fun f%d(a, b) {",
+        "  var c = a * 2 + b;",
+        "  if (c > 10 and b != nil) {",
+        "    c = c - 1;",
+        "  } else {",
+        "    c = c + 1;",
+        "  }",
+        "  return c >= 0 ? c : -c;",
+        "}",
+        "var v%d = f%d(%d, 3); var s%d = \"str\" + v%d;",
+    };
+
+    private SourceGenerator() {}
+
+    static String generate(int lines) {
+        StringBuilder source = new StringBuilder(lines * 24);
+        int line = 0;
+        for(int unit = 0; line < lines; unit++) {
+            for(String template : UNIT) {
+                if(line++ == lines) break;
+                source.append(template.replace("%d", Integer.toString(unit)));
+                source.append('\n');
+            }
+        }
+        return source.toString();
+    }
+}
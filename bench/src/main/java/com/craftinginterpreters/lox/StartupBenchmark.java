@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//getting a script file ready to run: cold goes through the Scanner,
+//Parser and Resolver, warm loads the same program from the AstCache
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StartupBenchmark {
+    @Param({"10000", "100000"})
+    int lines;
+
+    private Path directory;
+    private Path script;
+    private AstCache cache;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("lox-startup");
+        script = directory.resolve("prelude.lox");
+        Files.write(script, SourceGenerator.generate(lines).getBytes(Charset.defaultCharset()));
+        cache = new AstCache(directory.resolve("cache"));
+        if(Lox.load(script, cache, new LoxContext()) == null) {
+            throw new IllegalStateException("Generated source does not compile.");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<Stmt> cold() throws IOException {
+        return Lox.load(script, null, new LoxContext());
+    }
+
+    @Benchmark
+    public List<Stmt> warm() throws IOException {
+        return Lox.load(script, cache, new LoxContext());
+    }
+}
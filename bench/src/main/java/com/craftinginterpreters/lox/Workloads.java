@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+//small scripts that spend their time in the runtime rather than the front end
+final class Workloads {
+    static final String FIB =
+        "fun fib(n) {\n" +
+        "if (n <= 1) return n;\n" +
+        "return fib(n - 2) + fib(n - 1);\n" +
+        "}\n" +
+        "var result = fib(20);\n";
+
+    static final String NESTED_LOOPS =
+        "var total = 0;\n" +
+        "var i = 0;\n" +
+        "while (i < 300) {\n" +
+        "  var j = 0;\n" +
+        "  while (true) {\n" +
+        "    if (j >= 300) break;\n" +
+        "    total = total + j;\n" +
+        "    j = j + 1;\n" +
+        "  }\n" +
+        "  i = i + 1;\n" +
+        "}\n";
+
+    static final String CONCAT =
+        "var s = \"\";\n" +
+        "for (var i = 0; i < 1000; i = i + 1) {\n" +
+        "  s = s + \"x\" + i;\n" +
+        "}\n";
+
+    static final String CLOSURES =
+        "fun makeAdder(n) {\n" +
+        "  fun add(x) { return x + n; }\n" +
+        "  return add;\n" +
+        "}\n" +
+        "var sum = 0;\n" +
+        "for (var i = 0; i < 10000; i = i + 1) {\n" +
+        "  var add = makeAdder(i);\n" +
+        "  sum = add(sum);\n" +
+        "}\n";
+
+    private Workloads() {}
+
+    static String named(String name) {
+        switch(name) {
+            case "fib": return FIB;
+            case "nestedLoops": return NESTED_LOOPS;
+            case "concat": return CONCAT;
+            case "closures": return CLOSURES;
+        }
+        throw new IllegalArgumentException("Unknown workload " + name);
+    }
+}
@@ -0,0 +1,524 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//keeps resolved programs on disk, keyed by a hash of the source, so a
+//script that hasn't changed skips the Scanner, Parser and Resolver.
+//The cache is only ever a shortcut: anything wrong with an entry just
+//means a miss, and a failed write is ignored.
+class AstCache {
+    //bump whenever the format below or the shape of Expr/Stmt changes
+    private static final int VERSION = 4;
+    private static final int MAGIC = 0x4c4f5841; //"LOXA"
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    //the source bytes plus the charset they were decoded with, since the
+    //same bytes can scan differently under another one
+    static String key(ByteBuffer source, Charset charset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for(byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch(NoSuchAlgorithmException error) {
+            //every Java platform is required to have SHA-256
+            throw new IllegalStateException(error);
+        }
+    }
+
+    //null on a miss
+    List<Stmt> load(String key) {
+        Path file = file(key);
+        if(!Files.isRegularFile(file)) return null;
+
+        try {
+            ByteBuffer in = SourceReader.map(file);
+            if(in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            return new Reader(in).statements();
+        } catch(IOException | RuntimeException error) {
+            return null;
+        }
+    }
+
+    void store(String key, List<Stmt> statements) {
+        try {
+            Files.createDirectories(directory);
+            //written to the side and moved into place, so a concurrent run
+            //never sees half an entry
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                new Writer(out).statements(statements);
+            }
+            Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException error) {
+            //a read-only or full cache directory only costs us the speedup
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + ".loxc");
+    }
+
+    //node tags; 0 is a missing optional child
+    private static final byte NULL = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BINARY = 2;
+    private static final byte CALL = 3;
+    private static final byte GROUPING = 4;
+    private static final byte LITERAL = 5;
+    private static final byte LOGICAL = 6;
+    private static final byte UNARY = 7;
+    private static final byte TERNARY = 8;
+    private static final byte VARIABLE = 9;
+    private static final byte BLOCK = 10;
+    private static final byte EXPRESSION = 11;
+    private static final byte FUNCTION = 12;
+    private static final byte IF = 13;
+    private static final byte PRINT = 14;
+    private static final byte RETURN = 15;
+    private static final byte VAR = 16;
+    private static final byte WHILE = 17;
+    private static final byte BREAK = 18;
+    private static final byte FOR = 19;
+
+    //literal value tags
+    private static final byte NIL_VALUE = 0;
+    private static final byte FALSE_VALUE = 1;
+    private static final byte TRUE_VALUE = 2;
+    private static final byte NUMBER_VALUE = 3;
+    private static final byte STRING_VALUE = 4;
+
+    //pre-order walk of the tree. Strings are pooled: the first use is
+    //written out, later ones are a back reference to it.
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void statements(List<Stmt> statements) throws IOException {
+            try {
+                writeStatements(statements);
+            } catch(WriteError error) {
+                throw error.getCause();
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            varint(expr.depth + 1);
+            varint(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            varint(expr.arguments.size());
+            for(Expr argument : expr.arguments) expr(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            Object value = expr.value;
+            try {
+                if(value == null) {
+                    out.writeByte(NIL_VALUE);
+                } else if(value instanceof Boolean) {
+                    out.writeByte((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+                } else if(value instanceof Double) {
+                    out.writeByte(NUMBER_VALUE);
+                    out.writeDouble((Double) value);
+                } else {
+                    out.writeByte(STRING_VALUE);
+                    string((String) value);
+                }
+            } catch(IOException error) {
+                throw new WriteError(error);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            tag(TERNARY);
+            expr(expr.condition);
+            token(expr.operator1);
+            expr(expr.thenBranch);
+            token(expr.operator2);
+            expr(expr.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            varint(expr.depth + 1);
+            varint(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            writeStatements(stmt.statements);
+            varint(stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION);
+            token(stmt.name);
+            varint(stmt.params.size());
+            for(Token param : stmt.params) token(param);
+            writeStatements(stmt.body);
+            varint(stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            token(stmt.keyword);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            varint(stmt.tailCall ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            tag(FOR);
+            stmt(stmt.initializer);
+            expr(stmt.condition);
+            expr(stmt.increment);
+            stmt(stmt.body);
+            varint(stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            tag(BREAK);
+            token(stmt.keyword);
+            return null;
+        }
+
+        private void writeStatements(List<Stmt> statements) {
+            varint(statements.size());
+            for(Stmt statement : statements) stmt(statement);
+        }
+
+        private void expr(Expr expr) {
+            if(expr == null) {
+                tag(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if(stmt == null) {
+                tag(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        //the literal is left out; it is derived from the lexeme again on load
+        private void token(Token token) {
+            tag((byte) token.type.ordinal());
+            string(token.lexeme);
+            varint(token.line);
+        }
+
+        private void string(String value) {
+            Integer index = strings.get(value);
+            if(index != null) {
+                varint(index + 1);
+                return;
+            }
+
+            strings.put(value, strings.size());
+            varint(0);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            try {
+                out.write(bytes);
+            } catch(IOException error) {
+                throw new WriteError(error);
+            }
+        }
+
+        private void tag(byte tag) {
+            try {
+                out.writeByte(tag);
+            } catch(IOException error) {
+                throw new WriteError(error);
+            }
+        }
+
+        private void varint(int value) {
+            try {
+                while((value & ~0x7f) != 0) {
+                    out.writeByte((value & 0x7f) | 0x80);
+                    value >>>= 7;
+                }
+                out.writeByte(value);
+            } catch(IOException error) {
+                throw new WriteError(error);
+            }
+        }
+    }
+
+    //the visitors can't throw checked exceptions, so carry them out in this
+    private static class WriteError extends RuntimeException {
+        WriteError(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final ByteBuffer in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = varint();
+            List<Stmt> statements = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) statements.add(stmt());
+            return statements;
+        }
+
+        private Stmt stmt() throws IOException {
+            byte tag = in.get();
+            switch(tag) {
+                case NULL: return null;
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.frameSize = varint();
+                    return block;
+                }
+                case EXPRESSION: return new Stmt.Expression(expr());
+                case FUNCTION: {
+                    Token name = token();
+                    int arity = varint();
+                    List<Token> params = new ArrayList<>(arity);
+                    for(int i = 0; i < arity; i++) params.add(token());
+                    Stmt.Function function = new Stmt.Function(name, params, statements());
+                    function.frameSize = varint();
+                    return function;
+                }
+                case IF: return new Stmt.If(expr(), stmt(), stmt());
+                case PRINT: return new Stmt.Print(token(), expr());
+                case RETURN: {
+                    Stmt.Return result = new Stmt.Return(token(), expr());
+                    result.tailCall = varint() != 0;
+                    return result;
+                }
+                case VAR: return new Stmt.Var(token(), expr());
+                case WHILE: return new Stmt.While(expr(), stmt());
+                case BREAK: return new Stmt.Break(token());
+                case FOR: {
+                    Stmt.For loop = new Stmt.For(stmt(), expr(), expr(), stmt());
+                    loop.frameSize = varint();
+                    return loop;
+                }
+            }
+            throw new IOException("Bad statement tag " + tag + ".");
+        }
+
+        //Java evaluates arguments left to right, which is the order they were written in
+        private Expr expr() throws IOException {
+            byte tag = in.get();
+            switch(tag) {
+                case NULL: return null;
+                case ASSIGN: {
+                    Expr.Assign assign = new Expr.Assign(token(), expr());
+                    assign.depth = varint() - 1;
+                    assign.slot = varint();
+                    return assign;
+                }
+                case BINARY: return new Expr.Binary(expr(), token(), expr());
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int count = varint();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++) arguments.add(expr());
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case GROUPING: return new Expr.Grouping(expr());
+                case LITERAL: return new Expr.Literal(literal());
+                case LOGICAL: return new Expr.Logical(expr(), token(), expr());
+                case UNARY: return new Expr.Unary(token(), expr());
+                case TERNARY: return new Expr.Ternary(expr(), token(), expr(), token(), expr());
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(token());
+                    variable.depth = varint() - 1;
+                    variable.slot = varint();
+                    return variable;
+                }
+            }
+            throw new IOException("Bad expression tag " + tag + ".");
+        }
+
+        private Object literal() throws IOException {
+            byte tag = in.get();
+            switch(tag) {
+                case NIL_VALUE: return null;
+                case FALSE_VALUE: return false;
+                case TRUE_VALUE: return true;
+                case NUMBER_VALUE: return in.getDouble();
+                case STRING_VALUE: return string();
+            }
+            throw new IOException("Bad literal tag " + tag + ".");
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TYPES[in.get()];
+            String lexeme = string();
+            return new Token(type, lexeme, Scanner.literal(type, lexeme), varint());
+        }
+
+        private String string() throws IOException {
+            int index = varint();
+            if(index > 0) return strings.get(index - 1);
+
+            byte[] bytes = new byte[varint()];
+            in.get(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        private int varint() throws IOException {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                int b = in.get() & 0xff;
+                value |= (b & 0x7f) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+        }
+    }
+}
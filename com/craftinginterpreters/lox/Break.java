@@ -1,8 +0,0 @@
-package com.craftinginterpreters.lox;
-
-public class Break extends RuntimeException{
-    Break() {
-        super(null, null, false, false);
-    }
-    
-}
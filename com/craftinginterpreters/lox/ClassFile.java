@@ -0,0 +1,503 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//writes the bytes of one class for JvmCompiler. The version is 49, the last
+//one the JVM still verifies by inferring types, so methods carry no stack
+//map frames and branches need no more bookkeeping than an offset. Only the
+//instructions tier 1 emits are here.
+final class ClassFile {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int ATHROW = 0xbf;
+    private static final int WIDE = 0xc4;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final String[] interfaces;
+    //the pool as written, and each entry's index by a key naming its contents
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    //name is internal, like com/craftinginterpreters/lox/Loop
+    ClassFile(String name, String... interfaces) {
+        this.name = name;
+        this.interfaces = interfaces;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(access, name, descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toBytes() {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int[] interfaceRefs = new int[interfaces.length];
+        for(int i = 0; i < interfaces.length; i++) {
+            interfaceRefs[i] = classRef(interfaces[i]);
+        }
+        int codeName = utf8("Code");
+        for(Code method : methods) {
+            method.nameIndex = utf8(method.name);
+            method.descriptorIndex = utf8(method.descriptor);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for(int ref : interfaceRefs) out.writeShort(ref);
+            out.writeShort(fields.size());
+            for(byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for(Code method : methods) method.write(out, codeName);
+            out.writeShort(0);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if(index != null) return index;
+        return add("U" + value, 1, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    private int classRef(String internalName) {
+        Integer index = entries.get("C" + internalName);
+        if(index != null) return index;
+        int nameIndex = utf8(internalName);
+        return add("C" + internalName, 1, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    private int string(String value) {
+        Integer index = entries.get("S" + value);
+        if(index != null) return index;
+        int valueIndex = utf8(value);
+        return add("S" + value, 1, out -> {
+            out.writeByte(CONSTANT_STRING);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    private int integer(int value) {
+        Integer index = entries.get("I" + value);
+        if(index != null) return index;
+        return add("I" + value, 1, out -> {
+            out.writeByte(CONSTANT_INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    //by bit pattern, so 0 and -0 get entries of their own
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = entries.get("D" + bits);
+        if(index != null) return index;
+        return add("D" + bits, 2, out -> {
+            out.writeByte(CONSTANT_DOUBLE);
+            out.writeLong(bits);
+        });
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = entries.get(key);
+        if(index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = add("N" + name + descriptor, 1, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return add(key, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    //doubles take two pool slots
+    private int add(String key, int slots, Entry entry) {
+        if(poolCount + slots > 0xffff) throw new IllegalStateException("Constant pool is full.");
+        try {
+            entry.write(new DataOutputStream(pool));
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        int index = poolCount;
+        poolCount += slots;
+        entries.put(key, index);
+        return index;
+    }
+
+    //how many stack slots a value of this descriptor takes
+    private static int size(char type) {
+        return type == 'D' || type == 'J' ? 2 : type == 'V' ? 0 : 1;
+    }
+
+    //the change in stack depth a call makes, receiver included
+    private static int callEffect(int opcode, String descriptor) {
+        int effect = opcode == INVOKESTATIC ? 0 : -1;
+        int i = 1;
+        while(descriptor.charAt(i) != ')') {
+            char type = descriptor.charAt(i);
+            effect -= size(type);
+            while(descriptor.charAt(i) == '[') i++;
+            if(descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+        }
+        return effect + size(descriptor.charAt(i + 1));
+    }
+
+    //a branch target. Code is emitted in one pass, so forward branches are
+    //patched once their label is marked.
+    static final class Label {
+        private int position = -1;
+        //stack depth on arrival, from the first branch here
+        private int depth = -1;
+        private int[] fixups = new int[2];
+        private int fixupCount = 0;
+    }
+
+    //one method's instructions. It keeps the stack depth as it goes, which
+    //is enough for the structured code JvmCompiler writes: every label is
+    //reached either by falling through or with the depth of its branches.
+    final class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private int nameIndex;
+        private int descriptorIndex;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int depth = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        private boolean reachable = true;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            //the arguments, and the receiver of an instance method
+            this.maxLocals = -callEffect(INVOKESTATIC, descriptor.replaceAll("\\).*", ")V")) +
+                             ((access & ACC_STATIC) == 0 ? 1 : 0);
+        }
+
+        //a new local variable slot, two for a double
+        int newLocal(boolean wide) {
+            int local = maxLocals;
+            maxLocals += wide ? 2 : 1;
+            return local;
+        }
+
+        void op(int opcode) {
+            emit(opcode);
+            switch(opcode) {
+                case ACONST_NULL: case ICONST_0: case ICONST_1: case DUP:
+                    stack(1);
+                    break;
+                case DCONST_0: case DUP2:
+                    stack(2);
+                    break;
+                case POP: case ARETURN: case AALOAD:
+                    stack(-1);
+                    break;
+                case POP2: case DADD: case DSUB: case DMUL: case DRETURN:
+                    stack(-2);
+                    break;
+                case DCMPL: case DCMPG: case AASTORE:
+                    stack(-3);
+                    break;
+                case ATHROW:
+                    stack(-1);
+                    reachable = false;
+                    break;
+                case DNEG: case RETURN:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + opcode);
+            }
+            if(opcode == ARETURN || opcode == DRETURN || opcode == RETURN) reachable = false;
+        }
+
+        void iconst(int value) {
+            if(value == 0 || value == 1) {
+                op(value == 0 ? ICONST_0 : ICONST_1);
+            } else if(value >= -128 && value <= 127) {
+                emit(BIPUSH);
+                emit(value & 0xff);
+                stack(1);
+            } else if(value >= -32768 && value <= 32767) {
+                emit(SIPUSH);
+                emit2(value);
+                stack(1);
+            } else {
+                constant(integer(value), 1);
+            }
+        }
+
+        void ldc(String value) {
+            constant(string(value), 1);
+        }
+
+        //a class constant, as in Foo.class
+        void ldcClass(String internalName) {
+            constant(classRef(internalName), 1);
+        }
+
+        void ldc(double value) {
+            emit(0x14); //ldc2_w
+            emit2(doubleConstant(value));
+            stack(2);
+        }
+
+        private void constant(int index, int size) {
+            if(index < 256) {
+                emit(0x12); //ldc
+                emit(index);
+            } else {
+                emit(0x13); //ldc_w
+                emit2(index);
+            }
+            stack(size);
+        }
+
+        //loads and stores: ILOAD, DLOAD, ALOAD, ISTORE, DSTORE or ASTORE
+        void local(int opcode, int local) {
+            if(local > 255) {
+                emit(WIDE);
+                emit(opcode);
+                emit2(local);
+            } else {
+                emit(opcode);
+                emit(local);
+            }
+            switch(opcode) {
+                case ILOAD: case ALOAD: stack(1); break;
+                case DLOAD: stack(2); break;
+                case ISTORE: case ASTORE: stack(-1); break;
+                case DSTORE: stack(-2); break;
+                default: throw new IllegalArgumentException("Unknown opcode " + opcode);
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            boolean isInterface = opcode == INVOKEINTERFACE;
+            emit(opcode);
+            emit2(member(isInterface ? CONSTANT_INTERFACE_METHODREF : CONSTANT_METHODREF,
+                         owner, name, descriptor));
+            if(isInterface) {
+                //the count of argument slots, receiver included
+                emit(-callEffect(INVOKEVIRTUAL, descriptor.replaceAll("\\).*", ")V")));
+                emit(0);
+            }
+            stack(callEffect(opcode, descriptor));
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            emit(opcode);
+            emit2(member(CONSTANT_FIELDREF, owner, name, descriptor));
+            int size = size(descriptor.charAt(0));
+            switch(opcode) {
+                case GETSTATIC: stack(size); break;
+                case PUTSTATIC: stack(-size); break;
+                case GETFIELD: stack(size - 1); break;
+                case PUTFIELD: stack(-size - 1); break;
+                default: throw new IllegalArgumentException("Unknown opcode " + opcode);
+            }
+        }
+
+        //NEW isn't needed: tier 1 never allocates except through calls
+        void type(int opcode, String internalName) {
+            emit(opcode);
+            emit2(classRef(internalName));
+        }
+
+        void jump(int opcode, Label label) {
+            int at = length;
+            emit(opcode);
+            emit2(0);
+            if(opcode == IF_ACMPEQ || opcode == IF_ACMPNE) {
+                stack(-2);
+            } else if(opcode != GOTO) {
+                stack(-1);
+            }
+            if(label.depth == -1) label.depth = depth;
+            if(label.position != -1) {
+                patch(at, label.position);
+            } else {
+                if(label.fixupCount == label.fixups.length) {
+                    label.fixups = Arrays.copyOf(label.fixups, label.fixupCount * 2);
+                }
+                label.fixups[label.fixupCount++] = at;
+            }
+            if(opcode == GOTO) reachable = false;
+        }
+
+        void mark(Label label) {
+            label.position = length;
+            for(int i = 0; i < label.fixupCount; i++) {
+                patch(label.fixups[i], length);
+            }
+            label.fixupCount = 0;
+            if(!reachable) depth = Math.max(label.depth, 0);
+            if(label.depth == -1) label.depth = depth;
+            reachable = true;
+        }
+
+        private void patch(int at, int target) {
+            int offset = target - at;
+            if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new IllegalStateException("Method too large.");
+            }
+            code[at + 1] = (byte)(offset >> 8);
+            code[at + 2] = (byte)offset;
+        }
+
+        private void stack(int change) {
+            depth += change;
+            if(depth > maxStack) maxStack = depth;
+        }
+
+        private void emit(int value) {
+            if(length == code.length) {
+                if(length == 0xffff) throw new IllegalStateException("Method too large.");
+                code = Arrays.copyOf(code, Math.min(length * 2, 0xffff));
+            }
+            code[length++] = (byte)value;
+        }
+
+        private void emit2(int value) {
+            emit(value >> 8);
+            emit(value);
+        }
+
+        private void write(DataOutputStream out, int codeName) throws IOException {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
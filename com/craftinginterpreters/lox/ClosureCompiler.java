@@ -0,0 +1,210 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+//turns a resolved tree into ExecNodes in one pass, so operator and scope
+//decisions are paid for here instead of on every evaluation
+class ClosureCompiler implements Expr.Visitor<ExecNode>,
+                                 Stmt.Visitor<ExecNode>{
+    private final Interpreter interpreter;
+    private final Environment globals;
+    //how many frames deep we are; 0 means declarations are globals
+    private int frames = 0;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    ExecNode[] compile(List<Stmt> statements) {
+        ExecNode[] nodes = new ExecNode[statements.size()];
+        for(int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(statements.get(i));
+        }
+        return nodes;
+    }
+
+    ExecNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    ExecNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public ExecNode visitAssignExpr(Expr.Assign expr) {
+        ExecNode value = compile(expr.value);
+        if(expr.depth != -1) {
+            return new ExecNode.LocalSet(expr.depth, expr.slot, value);
+        }
+        return new ExecNode.GlobalSet(globals, expr.name, value);
+    }
+
+    @Override
+    public ExecNode visitBinaryExpr(Expr.Binary expr) {
+        ExecNode left = compile(expr.left);
+        ExecNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch(operator.type){
+            case BANG_EQUAL: return new ExecNode.NotEqual(left, right);
+            case EQUAL_EQUAL: return new ExecNode.Equal(left, right);
+            case GREATER: return new ExecNode.Greater(operator, left, right);
+            case GREATER_EQUAL: return new ExecNode.GreaterEqual(operator, left, right);
+            case LESS: return new ExecNode.Less(operator, left, right);
+            case LESS_EQUAL: return new ExecNode.LessEqual(operator, left, right);
+            case MINUS: return new ExecNode.Subtract(operator, left, right);
+            case PLUS: return new ExecNode.Add(operator, left, right);
+            case SLASH: return new ExecNode.Divide(operator, left, right);
+            case STAR: return new ExecNode.Multiply(operator, left, right);
+        }
+
+        throw new IllegalStateException("Unknown binary operator " + operator.type);
+    }
+
+    @Override
+    public ExecNode visitCallExpr(Expr.Call expr) {
+        ExecNode callee = compile(expr.callee);
+        ExecNode[] arguments = new ExecNode[expr.arguments.size()];
+        for(int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        return new ExecNode.Call(interpreter, expr.paren, callee, arguments);
+    }
+
+    @Override
+    public ExecNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExecNode visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value instanceof Double) {
+            return new ExecNode.NumberConstant((Double) expr.value);
+        }
+        return new ExecNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExecNode visitLogicalExpr(Expr.Logical expr) {
+        ExecNode left = compile(expr.left);
+        ExecNode right = compile(expr.right);
+        if(expr.operator.type == TokenType.OR) {
+            return new ExecNode.Or(left, right);
+        }
+        return new ExecNode.And(left, right);
+    }
+
+    @Override
+    public ExecNode visitUnaryExpr(Expr.Unary expr) {
+        ExecNode right = compile(expr.right);
+
+        switch(expr.operator.type){
+            case BANG: return new ExecNode.Not(right);
+            case MINUS: return new ExecNode.Negate(expr.operator, right);
+        }
+
+        throw new IllegalStateException("Unknown unary operator " + expr.operator.type);
+    }
+
+    @Override
+    public ExecNode visitTernaryExpr(Expr.Ternary expr) {
+        return new ExecNode.Conditional(compile(expr.condition),
+                                        compile(expr.thenBranch),
+                                        compile(expr.elseBranch));
+    }
+
+    @Override
+    public ExecNode visitVariableExpr(Expr.Variable expr) {
+        if(expr.depth == -1) return new ExecNode.GlobalGet(globals, expr.name);
+
+        switch(expr.depth) {
+            case 0: return new ExecNode.LocalGet0(expr.slot);
+            case 1: return new ExecNode.LocalGet1(expr.slot);
+            default: return new ExecNode.LocalGet(expr.depth, expr.slot);
+        }
+    }
+
+    @Override
+    public ExecNode visitBlockStmt(Stmt.Block stmt) {
+        //the Resolver gave a block that declares nothing no scope, so it
+        //runs in its parent's frame
+        if(stmt.frameSize == 0) return new ExecNode.Sequence(compile(stmt.statements));
+
+        frames++;
+        ExecNode[] statements = compile(stmt.statements);
+        frames--;
+        return new ExecNode.Block(stmt.frameSize, statements);
+    }
+
+    @Override
+    public ExecNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new ExecNode.ExpressionStatement(compile(stmt.expression));
+    }
+
+    @Override
+    public ExecNode visitFunctionStmt(Stmt.Function stmt) {
+        frames++;
+        ExecNode[] body = compile(stmt.body);
+        frames--;
+
+        ExecNode function = new ExecNode.Function(stmt.name.lexeme,
+            stmt.params.size(), stmt.frameSize, body, stmt.memo);
+        return define(stmt.name, function);
+    }
+
+    @Override
+    public ExecNode visitIfStmt(Stmt.If stmt) {
+        return new ExecNode.If(compile(stmt.condition),
+            compile(stmt.thenBranch),
+            stmt.elseBranch == null ? null : compile(stmt.elseBranch));
+    }
+
+    @Override
+    public ExecNode visitPrintStmt(Stmt.Print stmt) {
+        return new ExecNode.Print(compile(stmt.expression), interpreter.context.out);
+    }
+
+    @Override
+    public ExecNode visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.tailCall) return new ExecNode.TailCall((ExecNode.Call)compile(stmt.value));
+        return new ExecNode.ReturnValue(interpreter,
+            stmt.value == null ? null : compile(stmt.value));
+    }
+
+    @Override
+    public ExecNode visitVarStmt(Stmt.Var stmt) {
+        return define(stmt.name,
+            stmt.initializer == null ? null : compile(stmt.initializer));
+    }
+
+    @Override
+    public ExecNode visitWhileStmt(Stmt.While stmt) {
+        return new ExecNode.While(compile(stmt.condition), compile(stmt.body));
+    }
+
+    @Override
+    public ExecNode visitForStmt(Stmt.For stmt) {
+        if(stmt.frameSize != 0) frames++;
+        ExecNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        ExecNode condition = stmt.condition == null ? null : compile(stmt.condition);
+        ExecNode increment = stmt.increment == null ? null : compile(stmt.increment);
+        ExecNode body = compile(stmt.body);
+        if(stmt.frameSize != 0) frames--;
+        return new ExecNode.For(stmt.frameSize, initializer, condition, increment, body);
+    }
+
+    @Override
+    public ExecNode visitBreakStmt(Stmt.Break stmt) {
+        return new ExecNode.BreakLoop();
+    }
+
+    //same rule as Interpreter.define: only top-level declarations are globals
+    private ExecNode define(Token name, ExecNode value) {
+        if(frames == 0) {
+            return new ExecNode.DefineGlobal(globals, name.symbol(), value);
+        }
+        return new ExecNode.DefineLocal(value);
+    }
+}
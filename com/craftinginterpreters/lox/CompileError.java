@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+//thrown by LoxEngine.compile; the message has one line per error, in the
+//same form the command line prints them
+public class CompileError extends RuntimeException {
+    CompileError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+//a function body or loop JvmCompiler turned into a hidden class
+interface CompiledCode {
+    //runs the code in the environment the tree-walker would have run it
+    //in, handing back what it did to control flow. null means a guard
+    //failed before anything ran, and tier 0 should run it instead.
+    Completion execute(Interpreter interpreter, Environment environment);
+}
@@ -0,0 +1,125 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+//the ClosureCompiler's counterpart to LoxFunction, running a pre-linked body
+class CompiledFunction implements LoxCallable{
+    private final String name;
+    private final int arity;
+    private final int frameSize;
+    final ExecNode[] body;
+    private final Environment closure;
+    //null unless the function is pure and memoization is on
+    private final Memo memo;
+
+    CompiledFunction(String name, int arity, int frameSize,
+                     ExecNode[] body, Environment closure, Memo memo) {
+        this.name = name;
+        this.arity = arity;
+        this.frameSize = frameSize;
+        this.body = body;
+        this.closure = closure;
+        this.memo = memo;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        if(memo != null) return memoized(interpreter, arguments);
+        return invoke(interpreter, frame(arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if(memo != null) return memoized(interpreter, new Object[0]);
+        return invoke(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        if(memo != null) return memoized(interpreter, new Object[] {a});
+        Environment environment = newFrame();
+        environment.define(a);
+        return invoke(interpreter, environment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        if(memo != null) return memoized(interpreter, new Object[] {a, b});
+        Environment environment = newFrame();
+        environment.define(a);
+        environment.define(b);
+        return invoke(interpreter, environment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        if(memo != null) return memoized(interpreter, new Object[] {a, b, c});
+        Environment environment = newFrame();
+        environment.define(a);
+        environment.define(b);
+        environment.define(c);
+        return invoke(interpreter, environment);
+    }
+
+    private Object memoized(Interpreter interpreter, Object[] arguments) {
+        List<Object> key = Arrays.asList(arguments);
+        Object value = memo.get(key);
+        if(value != Memo.MISSING) return value;
+
+        value = invoke(interpreter, frame(arguments));
+        memo.put(key, value);
+        return value;
+    }
+
+    private Environment frame(Object[] arguments) {
+        Environment environment = newFrame();
+        for(Object argument : arguments) {
+            environment.define(argument);
+        }
+        return environment;
+    }
+
+    boolean memoized() {
+        return memo != null;
+    }
+
+    //see LoxFunction.newFrame
+    Environment newFrame() {
+        return new Environment(closure, frameSize, true);
+    }
+
+    //see LoxFunction.invoke
+    Object invoke(Interpreter interpreter, Environment environment) {
+        ExecNode[] body = this.body;
+        run:
+        for(;;) {
+            for(ExecNode statement : body) {
+                Object completion = statement.execute(environment);
+                if(completion == Completion.TAIL_CALL) {
+                    body = ((CompiledFunction)interpreter.tailCallee).body;
+                    environment = interpreter.tailFrame;
+                    interpreter.tailCallee = null;
+                    interpreter.tailFrame = null;
+                    continue run;
+                }
+                if(completion == Completion.RETURN) {
+                    Object value = interpreter.returnValue;
+                    interpreter.returnValue = null;
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//a resolved program, made by LoxEngine.compile. Nothing here changes after
+//construction, and every execute() gets its own Interpreter and globals,
+//so one script can run on many threads at once.
+//
+//The tree is shared, so it runs on the tree-walker without tiering or
+//memoization, both of which would write state into it. The call-site
+//inline caches do write into it, but a stale or foreign entry only misses,
+//and they hold only declarations and static natives, so no execution's
+//interpreter or globals outlive it through the tree.
+public final class CompiledScript {
+    private final LoxEngine engine;
+    private final List<Stmt> statements;
+    private final List<Symbol> declaredGlobals;
+
+    CompiledScript(LoxEngine engine, List<Stmt> statements, List<Symbol> declaredGlobals) {
+        this.engine = engine;
+        this.statements = Collections.unmodifiableList(statements);
+        this.declaredGlobals = Collections.unmodifiableList(declaredGlobals);
+    }
+
+    public Map<String, Object> execute() {
+        return execute(Collections.emptyMap());
+    }
+
+    //defines each binding as a global before running, then returns the
+    //final value of every binding and of every global the script
+    //declares at top level. Numbers come back as Double, and functions
+    //as opaque objects that can be passed back in as bindings.
+    //Throws RuntimeError if the script fails.
+    public Map<String, Object> execute(Map<String, ?> bindings) {
+        LoxContext context = new LoxContext(engine.out(), System.err);
+        Interpreter interpreter = new Interpreter(context);
+        for(Map.Entry<String, ?> binding : bindings.entrySet()) {
+            interpreter.globals.define(Symbol.intern(binding.getKey()),
+                                       toLox(binding.getKey(), binding.getValue()));
+        }
+
+        for(Stmt statement : statements) {
+            interpreter.execute(statement);
+        }
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        for(String name : bindings.keySet()) {
+            results.put(name, interpreter.globals.get(Symbol.intern(name)));
+        }
+        for(Symbol name : declaredGlobals) {
+            results.put(name.name, interpreter.globals.get(name));
+        }
+        return results;
+    }
+
+    private static Object toLox(String name, Object value) {
+        if(value == null || value instanceof String || value instanceof Boolean ||
+           value instanceof Double || value instanceof LoxCallable) {
+            return value;
+        }
+        if(value instanceof Number) return ((Number)value).doubleValue();
+        throw new IllegalArgumentException("Can't bind '" + name + "' to a " +
+                                           value.getClass().getName() + ".");
+    }
+}
@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+//what executing a statement did to control flow, handed back up the
+//statement chain instead of thrown. A RETURN's value waits in
+//Interpreter.returnValue until the call that made it picks it up.
+//A TAIL_CALL leaves the callee and its filled frame in Interpreter's
+//tailCallee and tailFrame instead, for the caller's invoke loop to run.
+enum Completion {
+    NORMAL,
+    BREAK,
+    RETURN,
+    TAIL_CALL
+}
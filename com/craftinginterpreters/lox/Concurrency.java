@@ -0,0 +1,228 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+//the natives that let a script run work on other threads:
+//
+//  spawn(fn)        runs fn, which takes no arguments, on a new thread and
+//                   returns a task
+//  join(task)       waits for the task and returns what fn returned; an
+//                   error in the task is raised here
+//  channel(n)       a queue holding at most n values
+//  send(ch, value)  waits for room, then adds value
+//  receive(ch)      waits for a value, then takes it
+//
+//Tasks run on virtual threads where the JDK has them (21 and up, found by
+//reflection since the build targets 17) and on daemon platform threads
+//otherwise. Each task gets its own Interpreter over the same globals.
+//
+//What is shared, and how:
+//  - globals: every read and write is atomic and visible to other threads
+//    at once (see Environment), but a read followed by a write, like
+//    n = n + 1, is not; use a channel to hand values over instead.
+//  - captured locals: plain fields, like Java's. Everything written
+//    before spawn is visible to the task, everything the task wrote is
+//    visible after join, and send happens before the receive that takes
+//    the value. Unsynchronized writes from two tasks may race.
+//  - call-site caches and memo tables are safe to share.
+//Only functions the tree-walker declared can be spawned, since compiled
+//function bodies report their results through the Interpreter that
+//compiled them. Under --engine=tiered that is every function: tier 1
+//leaves code that declares functions on the tree-walker.
+final class Concurrency {
+    private Concurrency() {}
+
+    //Thread.startVirtualThread(Runnable), or null before JDK 21
+    private static final MethodHandle START_VIRTUAL = findStartVirtual();
+
+    private static MethodHandle findStartVirtual() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Thread.class, "startVirtualThread",
+                MethodType.methodType(Thread.class, Runnable.class));
+        } catch(ReflectiveOperationException error) {
+            return null;
+        }
+    }
+
+    static void start(Runnable task) {
+        if(START_VIRTUAL != null) {
+            try {
+                START_VIRTUAL.invoke(task);
+                return;
+            } catch(UnsupportedOperationException error) {
+                //a JDK where virtual threads are still a preview feature
+            } catch(Throwable error) {
+                throw new IllegalStateException(error);
+            }
+        }
+        Thread thread = new Thread(task, "lox-task");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final LoxCallable SPAWN = new Native("spawn", 1) {
+        @Override
+        public Object call1(Interpreter interpreter, Object function) {
+            if(!(function instanceof LoxFunction)) {
+                throw new NativeError("Can only spawn functions the tree-walker declared.");
+            }
+            if(((LoxFunction)function).arity() != 0) {
+                throw new NativeError("Can only spawn a function that takes no arguments.");
+            }
+            Task task = new Task();
+            Interpreter forked = interpreter.fork();
+            start(() -> task.run((LoxFunction)function, forked));
+            return task;
+        }
+    };
+
+    private static final LoxCallable JOIN = new Native("join", 1) {
+        @Override
+        public Object call1(Interpreter interpreter, Object task) {
+            if(!(task instanceof Task)) throw new NativeError("Can only join a task.");
+            return ((Task)task).join();
+        }
+    };
+
+    private static final LoxCallable CHANNEL = new Native("channel", 1) {
+        @Override
+        public Object call1(Interpreter interpreter, Object capacity) {
+            if(!(capacity instanceof Double) || (Double)capacity < 1 ||
+               (Double)capacity != Math.floor((Double)capacity)) {
+                throw new NativeError("Channel capacity must be a positive integer.");
+            }
+            return new Channel((int)Math.min((Double)capacity, Integer.MAX_VALUE));
+        }
+    };
+
+    private static final LoxCallable SEND = new Native("send", 2) {
+        @Override
+        public Object call2(Interpreter interpreter, Object channel, Object value) {
+            channel(channel).send(value);
+            return null;
+        }
+    };
+
+    private static final LoxCallable RECEIVE = new Native("receive", 1) {
+        @Override
+        public Object call1(Interpreter interpreter, Object channel) {
+            return channel(channel).receive();
+        }
+    };
+
+    //the natives are shared by every interpreter; see Interpreter.CLOCK
+    static void define(Environment globals) {
+        globals.define(Symbol.intern("spawn"), SPAWN);
+        globals.define(Symbol.intern("join"), JOIN);
+        globals.define(Symbol.intern("channel"), CHANNEL);
+        globals.define(Symbol.intern("send"), SEND);
+        globals.define(Symbol.intern("receive"), RECEIVE);
+    }
+
+    private static Channel channel(Object value) {
+        if(!(value instanceof Channel)) throw new NativeError("Expected a channel.");
+        return (Channel)value;
+    }
+
+    //a fixed-arity native; each one overrides just its callN
+    private abstract static class Native implements LoxCallable {
+        private final String name;
+        private final int arity;
+
+        Native(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            if(arity == 1) return call1(interpreter, arguments[0]);
+            return call2(interpreter, arguments[0], arguments[1]);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn " + name + ">";
+        }
+    }
+
+    private static final class Task {
+        private final CountDownLatch done = new CountDownLatch(1);
+        //written before the latch opens, read after, so plain fields will do
+        private Object result = null;
+        private RuntimeError error = null;
+
+        void run(LoxFunction function, Interpreter interpreter) {
+            try {
+                result = function.call0(interpreter);
+            } catch(RuntimeError error) {
+                this.error = error;
+            } catch(StackOverflowError error) {
+                this.error = new RuntimeError(0, "Stack overflow.");
+            } finally {
+                interpreter.taskEnded();
+                done.countDown();
+            }
+        }
+
+        Object join() {
+            try {
+                done.await();
+            } catch(InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("Interrupted while joining a task.");
+            }
+            if(error != null) throw new RuntimeError(error.line, error.getMessage());
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "<task>";
+        }
+    }
+
+    private static final class Channel {
+        //BlockingQueue won't hold null, so nil travels as this
+        private static final Object NIL = new Object();
+        private final BlockingQueue<Object> values;
+
+        Channel(int capacity) {
+            this.values = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void send(Object value) {
+            try {
+                values.put(value == null ? NIL : value);
+            } catch(InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("Interrupted while sending.");
+            }
+        }
+
+        Object receive() {
+            try {
+                Object value = values.take();
+                return value == NIL ? null : value;
+            } catch(InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("Interrupted while receiving.");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<channel>";
+        }
+    }
+}
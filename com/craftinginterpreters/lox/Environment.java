@@ -1,21 +1,76 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 
 class Environment{
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    //globals by Symbol id, only used by the global environment.
+    //UNDEFINED marks a name that has an id but was never defined.
+    //Spawned tasks share the globals, so elements are read with acquire
+    //and written with release, and writers take the lock so none is lost
+    //to a concurrent grow. Reads stay as cheap as a plain load on x86.
+    private volatile Object[] values;
+    private static final VarHandle GLOBAL = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final Object UNDEFINED = new Object();
+    //fixed-size frame for local scopes, indexed by the slot the Resolver assigned
+    private final Object[] slots;
+    //unboxed lane for numeric locals, only in frames the closure engine
+    //makes. A slot holding NUMBER keeps its real value here. It is made
+    //with the frame, never later, so whoever sees NUMBER in a slot also
+    //sees the lane it points into.
+    private final double[] numbers;
+    private static final Object NUMBER = new Object();
+    private int count = 0;
 
+    //starts small and grows to the largest id defined; reading the
+    //symbol count here would take the table's lock on every new
+    //interpreter and size it for every name the process ever saw
     Environment() {
         enclosing = null;
+        values = newGlobals(16);
+        slots = null;
+        numbers = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
+        this(enclosing, size, false);
+    }
+
+    //numeric is for frames whose slots may hold unboxed numbers
+    Environment(Environment enclosing, int size, boolean numeric) {
         this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
+        this.numbers = numeric && size != 0 ? new double[size] : null;
     }
-    void define(String name, Object value) {
-        values.put(name, value);
+    synchronized void define(Symbol name, Object value) {
+        Object[] values = this.values;
+        if(name.id >= values.length) {
+            Object[] grown = newGlobals(Math.max(name.id + 1, values.length * 2));
+            System.arraycopy(values, 0, grown, 0, values.length);
+            GLOBAL.setRelease(grown, name.id, value);
+            this.values = grown;
+            return;
+        }
+        GLOBAL.setRelease(values, name.id, value);
+    }
+
+    private static Object[] newGlobals(int size) {
+        Object[] globals = new Object[size];
+        Arrays.fill(globals, UNDEFINED);
+        return globals;
+    }
+
+    //locals are declared in the same order the Resolver numbered them,
+    //so the next free slot is always the right one
+    void define(Object value) {
+        slots[count++] = value;
+    }
+
+    void defineNumber(double value) {
+        setNumber(count++, value);
     }
 
     Environment ancestor(int distance) {
@@ -27,32 +82,70 @@ class Environment{
         return environment;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).get(slot);
+    }
+
+    //a numeric slot only gets boxed here, once it escapes as an Object
+    Object get(int slot) {
+        Object value = slots[slot];
+        if(value == NUMBER) return numbers[slot];
+        return value;
+    }
+
+    boolean isNumber(int slot) {
+        return slots[slot] == NUMBER;
+    }
+
+    double getNumber(int slot) {
+        return numbers[slot];
+    }
+
+    void set(int slot, Object value) {
+        slots[slot] = value;
+    }
+
+    void setNumber(int slot, double value) {
+        numbers[slot] = value;
+        slots[slot] = NUMBER;
     }
 
     Object get(Token name) {
-        if(values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        int id = name.symbol().id;
+        Object[] values = this.values;
+        if(id < values.length) {
+            Object value = GLOBAL.getAcquire(values, id);
+            if(value != UNDEFINED) return value;
         }
-        if(enclosing != null) return enclosing.get(name);
 
         throw new RuntimeError(name, "Undefined variable'" + name.lexeme + "'.");
     }
-    void assign(Token name, Object value) {
-        if(values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    //a global by name, for LoxEngine; nil if it was never defined
+    Object get(Symbol name) {
+        Object[] values = this.values;
+        if(name.id < values.length) {
+            Object value = GLOBAL.getAcquire(values, name.id);
+            if(value != UNDEFINED) return value;
         }
-        if(enclosing != null) {
-            enclosing.assign(name, value);
+        return null;
+    }
+
+    synchronized void assign(Token name, Object value) {
+        int id = name.symbol().id;
+        Object[] values = this.values;
+        if(id < values.length && values[id] != UNDEFINED) {
+            GLOBAL.setRelease(values, id, value);
             return;
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "' .");
 
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    void assignNumberAt(int distance, int slot, double value) {
+        ancestor(distance).setNumber(slot, value);
     }
-}
\ No newline at end of file
+}
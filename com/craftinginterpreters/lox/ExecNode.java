@@ -0,0 +1,904 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+//a pre-linked form of the AST built once by ClosureCompiler. Every operator,
+//scope depth and declaration kind is already decided, so execute() does no
+//switching and HotSpot sees one small monomorphic method per node.
+//Statements return a Completion.
+abstract class ExecNode {
+    abstract Object execute(Environment environment);
+
+    //the unboxed path: number-producing nodes override this so arithmetic
+    //on locals never allocates a Double. Anything else falls back here and
+    //hands over the value it did produce.
+    double executeNumber(Environment environment) {
+        Object value = execute(environment);
+        if(value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    //statement position, where the result is dropped and needs no boxing
+    void executeVoid(Environment environment) {
+        execute(environment);
+    }
+
+    static final class UnexpectedResult extends RuntimeException {
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    static final class Constant extends ExecNode {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value;
+        }
+    }
+
+    static final class NumberConstant extends ExecNode {
+        private final Double boxed;
+        private final double value;
+
+        NumberConstant(Double value) {
+            this.boxed = value;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return boxed;
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            return value;
+        }
+    }
+
+    abstract static class LocalRead extends ExecNode {
+        final int slot;
+
+        LocalRead(int slot) {
+            this.slot = slot;
+        }
+
+        abstract Environment frame(Environment environment);
+
+        @Override
+        final Object execute(Environment environment) {
+            return frame(environment).get(slot);
+        }
+
+        @Override
+        final double executeNumber(Environment environment) {
+            Environment frame = frame(environment);
+            if(frame.isNumber(slot)) return frame.getNumber(slot);
+
+            Object value = frame.get(slot);
+            if(value instanceof Double) return (double) value;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    //locals get a node per common depth so the ancestor walk disappears
+    static final class LocalGet0 extends LocalRead {
+        LocalGet0(int slot) {
+            super(slot);
+        }
+
+        @Override
+        Environment frame(Environment environment) {
+            return environment;
+        }
+    }
+
+    static final class LocalGet1 extends LocalRead {
+        LocalGet1(int slot) {
+            super(slot);
+        }
+
+        @Override
+        Environment frame(Environment environment) {
+            return environment.enclosing;
+        }
+    }
+
+    static final class LocalGet extends LocalRead {
+        private final int depth;
+
+        LocalGet(int depth, int slot) {
+            super(slot);
+            this.depth = depth;
+        }
+
+        @Override
+        Environment frame(Environment environment) {
+            return environment.ancestor(depth);
+        }
+    }
+
+    static final class GlobalGet extends ExecNode {
+        private final Environment globals;
+        private final Token name;
+
+        GlobalGet(Environment globals, Token name) {
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return globals.get(name);
+        }
+    }
+
+    static final class LocalSet extends ExecNode {
+        private final int depth;
+        private final int slot;
+        private final ExecNode value;
+        //stays true until a non-number shows up; after that the unboxed path
+        //would only keep throwing, so the node sticks to plain objects
+        private boolean numeric = true;
+
+        LocalSet(int depth, int slot, ExecNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            double result;
+            try {
+                result = value.executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                numeric = false;
+                environment.assignAt(depth, slot, notNumber.value);
+                throw notNumber;
+            }
+            environment.assignNumberAt(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        void executeVoid(Environment environment) {
+            if(!numeric) {
+                execute(environment);
+                return;
+            }
+            try {
+                environment.assignNumberAt(depth, slot, value.executeNumber(environment));
+            } catch(UnexpectedResult notNumber) {
+                numeric = false;
+                environment.assignAt(depth, slot, notNumber.value);
+            }
+        }
+    }
+
+    static final class GlobalSet extends ExecNode {
+        private final Environment globals;
+        private final Token name;
+        private final ExecNode value;
+
+        GlobalSet(Environment globals, Token name, ExecNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            globals.assign(name, result);
+            return result;
+        }
+    }
+
+    //numeric binary operators share the operand check. Both operands are
+    //read on the unboxed path; like the tree-walker, the right one is still
+    //evaluated when the left one turns out not to be a number.
+    abstract static class NumberBinary extends ExecNode {
+        final Token operator;
+        private final ExecNode left;
+        private final ExecNode right;
+
+        NumberBinary(Token operator, ExecNode left, ExecNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        final double leftNumber(Environment environment) {
+            try {
+                return left.executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                right.execute(environment);
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+        }
+
+        final double rightNumber(Environment environment) {
+            try {
+                return right.executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+        }
+    }
+
+    abstract static class Arithmetic extends NumberBinary {
+        Arithmetic(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        final Object execute(Environment environment) {
+            return executeNumber(environment);
+        }
+
+        @Override
+        final double executeNumber(Environment environment) {
+            double a = leftNumber(environment);
+            return apply(a, rightNumber(environment));
+        }
+
+        abstract double apply(double a, double b);
+    }
+
+    //comparisons hand back Boolean.TRUE/FALSE, which never allocates
+    abstract static class Comparison extends NumberBinary {
+        Comparison(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        final Object execute(Environment environment) {
+            double a = leftNumber(environment);
+            return apply(a, rightNumber(environment));
+        }
+
+        abstract boolean apply(double a, double b);
+    }
+
+    static final class Subtract extends Arithmetic {
+        Subtract(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a - b;
+        }
+    }
+
+    static final class Multiply extends Arithmetic {
+        Multiply(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a * b;
+        }
+    }
+
+    static final class Divide extends Arithmetic {
+        Divide(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            if(b == 0) throw new RuntimeError(operator, "Division by zero not allowed.");
+            return a / b;
+        }
+    }
+
+    static final class Greater extends Comparison {
+        Greater(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a > b;
+        }
+    }
+
+    static final class GreaterEqual extends Comparison {
+        GreaterEqual(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a >= b;
+        }
+    }
+
+    static final class Less extends Comparison {
+        Less(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a < b;
+        }
+    }
+
+    static final class LessEqual extends Comparison {
+        LessEqual(Token operator, ExecNode left, ExecNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean apply(double a, double b) {
+            return a <= b;
+        }
+    }
+
+    static final class Add extends ExecNode {
+        private final Token operator;
+        private final ExecNode left;
+        private final ExecNode right;
+        //cleared once this site sees a string, see LocalSet
+        private boolean numeric = true;
+
+        Add(Token operator, ExecNode left, ExecNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if(!numeric) {
+                return add(left.execute(environment), right.execute(environment));
+            }
+            try {
+                return executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                return notNumber.value;
+            }
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            if(!numeric) return super.executeNumber(environment);
+
+            double a;
+            try {
+                a = left.executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                numeric = false;
+                throw new UnexpectedResult(
+                    add(notNumber.value, right.execute(environment)));
+            }
+            try {
+                return a + right.executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                numeric = false;
+                throw new UnexpectedResult(add(a, notNumber.value));
+            }
+        }
+
+        private Object add(Object a, Object b) {
+            if(a instanceof Double && b instanceof Double) {
+                return (double) a + (double) b;
+            }
+            if(a instanceof String && b instanceof String) {
+                return (String) a + (String) b;
+            }
+            if(a instanceof String || b instanceof String) {
+                return Interpreter.stringify(a) + Interpreter.stringify(b);
+            }
+            throw new RuntimeError(operator, "Operands must be two numbers of two string.");
+        }
+    }
+
+    static final class Equal extends ExecNode {
+        private final ExecNode left;
+        private final ExecNode right;
+
+        Equal(ExecNode left, ExecNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            return Interpreter.isEqual(a, right.execute(environment));
+        }
+    }
+
+    static final class NotEqual extends ExecNode {
+        private final ExecNode left;
+        private final ExecNode right;
+
+        NotEqual(ExecNode left, ExecNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            return !Interpreter.isEqual(a, right.execute(environment));
+        }
+    }
+
+    static final class Negate extends ExecNode {
+        private final Token operator;
+        private final ExecNode right;
+
+        Negate(Token operator, ExecNode right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeNumber(environment);
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            try {
+                return -right.executeNumber(environment);
+            } catch(UnexpectedResult notNumber) {
+                throw new RuntimeError(operator, "Operand must be a number");
+            }
+        }
+    }
+
+    static final class Not extends ExecNode {
+        private final ExecNode right;
+
+        Not(ExecNode right) {
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return !Interpreter.isTruthy(right.execute(environment));
+        }
+    }
+
+    static final class And extends ExecNode {
+        private final ExecNode left;
+        private final ExecNode right;
+
+        And(ExecNode left, ExecNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = left.execute(environment);
+            if(!Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        }
+    }
+
+    static final class Or extends ExecNode {
+        private final ExecNode left;
+        private final ExecNode right;
+
+        Or(ExecNode left, ExecNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = left.execute(environment);
+            if(Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        }
+    }
+
+    static final class Conditional extends ExecNode {
+        private final ExecNode condition;
+        private final ExecNode thenBranch;
+        private final ExecNode elseBranch;
+
+        Conditional(ExecNode condition, ExecNode thenBranch, ExecNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if(Interpreter.isTruthy(condition.execute(environment))) {
+                return thenBranch.execute(environment);
+            }
+            return elseBranch.execute(environment);
+        }
+    }
+
+    static final class If extends ExecNode {
+        private final ExecNode condition;
+        private final ExecNode thenBranch;
+        private final ExecNode elseBranch;
+
+        If(ExecNode condition, ExecNode thenBranch, ExecNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if(Interpreter.isTruthy(condition.execute(environment))) {
+                return thenBranch.execute(environment);
+            } else if(elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Call extends ExecNode {
+        private final Interpreter interpreter;
+        private final Token paren;
+        private final ExecNode callee;
+        private final ExecNode[] arguments;
+        //inline cache, same idea as Expr.Call's: compiled functions are
+        //keyed by their body, which all closures of one declaration share
+        private ExecNode[] cachedBody = null;
+        private LoxCallable cachedNative = null;
+
+        Call(Interpreter interpreter, Token paren, ExecNode callee, ExecNode[] arguments) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.callee = callee;
+            this.arguments = arguments;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+
+            if(function instanceof CompiledFunction &&
+               ((CompiledFunction)function).body == cachedBody) {
+                CompiledFunction compiled = (CompiledFunction)function;
+                return compiled.invoke(interpreter, frame(compiled, environment));
+            }
+            return call(function, environment);
+        }
+
+        //the same call in tail position; see Interpreter.visitReturnStmt
+        Object executeTail(Environment environment) {
+            Object function = callee.execute(environment);
+
+            if(function instanceof CompiledFunction && isTailCallable((CompiledFunction)function)) {
+                CompiledFunction compiled = (CompiledFunction)function;
+                interpreter.tailFrame = frame(compiled, environment);
+                interpreter.tailCallee = compiled;
+                return Completion.TAIL_CALL;
+            }
+            interpreter.returnValue = call(function, environment);
+            return Completion.RETURN;
+        }
+
+        //see Interpreter.isTailCallable
+        private boolean isTailCallable(CompiledFunction function) {
+            if(function.body == cachedBody) return true;
+            return function.memoized() && function.arity() == arguments.length;
+        }
+
+        private Environment frame(CompiledFunction function, Environment environment) {
+            Environment frame = function.newFrame();
+            for(ExecNode argument : arguments) {
+                frame.define(argument.execute(environment));
+            }
+            return frame;
+        }
+
+        private Object call(Object function, Environment environment) {
+            try {
+                return callChecked(function, environment);
+            } catch(NativeError error) {
+                throw new RuntimeError(paren, error.getMessage());
+            }
+        }
+
+        private Object callChecked(Object function, Environment environment) {
+            switch(arguments.length) {
+                case 0:
+                    return check(function).call0(interpreter);
+                case 1: {
+                    Object a = arguments[0].execute(environment);
+                    return check(function).call1(interpreter, a);
+                }
+                case 2: {
+                    Object a = arguments[0].execute(environment);
+                    Object b = arguments[1].execute(environment);
+                    return check(function).call2(interpreter, a, b);
+                }
+                case 3: {
+                    Object a = arguments[0].execute(environment);
+                    Object b = arguments[1].execute(environment);
+                    Object c = arguments[2].execute(environment);
+                    return check(function).call3(interpreter, a, b, c);
+                }
+                default: {
+                    Object[] values = new Object[arguments.length];
+                    for(int i = 0; i < values.length; i++) {
+                        values[i] = arguments[i].execute(environment);
+                    }
+                    return check(function).call(interpreter, values);
+                }
+            }
+        }
+
+        private LoxCallable check(Object function) {
+            //see Interpreter.checkCall
+            if(function == cachedNative && function != null) return (LoxCallable)function;
+
+            if(!(function instanceof LoxCallable)) {
+                throw new RuntimeError(paren,
+                "Can only call functions and classes.");
+            }
+            LoxCallable callable = (LoxCallable)function;
+            if(arguments.length != callable.arity()) {
+                throw new RuntimeError(paren, "Expected " + callable.arity() + " arguments but got"
+                 + arguments.length + ".");
+            }
+
+            if(callable instanceof CompiledFunction) {
+                //memoized functions have to go through call to use their cache
+                if(!((CompiledFunction)callable).memoized()) {
+                    cachedBody = ((CompiledFunction)callable).body;
+                }
+            } else {
+                cachedNative = callable;
+            }
+            return callable;
+        }
+    }
+
+    static final class Print extends ExecNode {
+        private final ExecNode expression;
+        private final PrintStream out;
+
+        Print(ExecNode expression, PrintStream out) {
+            this.expression = expression;
+            this.out = out;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            out.println(Interpreter.stringify(expression.execute(environment)));
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class ExpressionStatement extends ExecNode {
+        private final ExecNode expression;
+
+        ExpressionStatement(ExecNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            expression.executeVoid(environment);
+            return Completion.NORMAL;
+        }
+    }
+
+    //declarations fill the next frame slot, see Environment.define(Object)
+    static final class DefineLocal extends ExecNode {
+        private final ExecNode value;
+        //see LocalSet
+        private boolean numeric;
+
+        DefineLocal(ExecNode value) {
+            this.value = value;
+            this.numeric = value != null;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if(!numeric) {
+                environment.define(value == null ? null : value.execute(environment));
+                return Completion.NORMAL;
+            }
+            try {
+                environment.defineNumber(value.executeNumber(environment));
+            } catch(UnexpectedResult notNumber) {
+                numeric = false;
+                environment.define(notNumber.value);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class DefineGlobal extends ExecNode {
+        private final Environment globals;
+        private final Symbol name;
+        private final ExecNode value;
+
+        DefineGlobal(Environment globals, Symbol name, ExecNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            globals.define(name, value == null ? null : value.execute(environment));
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Function extends ExecNode {
+        private final String name;
+        private final int arity;
+        private final int frameSize;
+        private final ExecNode[] body;
+        private final Memo memo;
+
+        Function(String name, int arity, int frameSize, ExecNode[] body, Memo memo) {
+            this.name = name;
+            this.arity = arity;
+            this.frameSize = frameSize;
+            this.body = body;
+            this.memo = memo;
+        }
+
+        //yields the closure; the compiler wraps this in a define node
+        @Override
+        Object execute(Environment environment) {
+            return new CompiledFunction(name, arity, frameSize, body, environment, memo);
+        }
+    }
+
+    static final class Block extends ExecNode {
+        private final int frameSize;
+        private final ExecNode[] statements;
+
+        Block(int frameSize, ExecNode[] statements) {
+            this.frameSize = frameSize;
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Environment inner = new Environment(environment, frameSize, true);
+            for(ExecNode statement : statements) {
+                Object completion = statement.execute(inner);
+                if(completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    //a block with nothing to declare, run in the enclosing frame
+    static final class Sequence extends ExecNode {
+        private final ExecNode[] statements;
+
+        Sequence(ExecNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            for(ExecNode statement : statements) {
+                Object completion = statement.execute(environment);
+                if(completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class While extends ExecNode {
+        private final ExecNode condition;
+        private final ExecNode body;
+
+        While(ExecNode condition, ExecNode body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            while(Interpreter.isTruthy(condition.execute(environment))) {
+                Object completion = body.execute(environment);
+                if(completion == Completion.BREAK) break;
+                if(completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class For extends ExecNode {
+        private final int frameSize;
+        private final ExecNode initializer;
+        private final ExecNode condition;
+        private final ExecNode increment;
+        private final ExecNode body;
+
+        For(int frameSize, ExecNode initializer, ExecNode condition,
+            ExecNode increment, ExecNode body) {
+            this.frameSize = frameSize;
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            //one frame for the loop variable, shared by every iteration
+            Environment loop = frameSize == 0 ? environment
+                                              : new Environment(environment, frameSize, true);
+            if(initializer != null) initializer.execute(loop);
+            while(condition == null || Interpreter.isTruthy(condition.execute(loop))) {
+                Object completion = body.execute(loop);
+                if(completion == Completion.BREAK) break;
+                if(completion != Completion.NORMAL) return completion;
+                if(increment != null) increment.executeVoid(loop);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class ReturnValue extends ExecNode {
+        private final Interpreter interpreter;
+        private final ExecNode value;
+
+        ReturnValue(Interpreter interpreter, ExecNode value) {
+            this.interpreter = interpreter;
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            interpreter.returnValue = value == null ? null : value.execute(environment);
+            return Completion.RETURN;
+        }
+    }
+
+    static final class TailCall extends ExecNode {
+        private final Call call;
+
+        TailCall(Call call) {
+            this.call = call;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return call.executeTail(environment);
+        }
+    }
+
+    static final class BreakLoop extends ExecNode {
+        @Override
+        Object execute(Environment environment) {
+            return Completion.BREAK;
+        }
+    }
+}
@@ -2,8 +2,8 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Expr {
- interface Visitor<R> {
+public abstract class Expr {
+ public interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
@@ -14,21 +14,23 @@ abstract class Expr {
     R visitTernaryExpr(Ternary expr);
     R visitVariableExpr(Variable expr);
  }
- static class Assign extends Expr {
+ public static class Assign extends Expr {
     Assign(Token name, Expr value) {
     this.name = name;
     this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitAssignExpr(this);
     }
 
-    final Token name;
-    final Expr value;
+    public final Token name;
+    public final Expr value;
+    public int depth = -1;
+    public int slot;
  }
- static class Binary extends Expr {
+ public static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
     this.left = left;
     this.operator = operator;
@@ -36,15 +38,15 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitBinaryExpr(this);
     }
 
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
  }
- static class Call extends Expr {
+ public static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
     this.callee = callee;
     this.paren = paren;
@@ -52,39 +54,41 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitCallExpr(this);
     }
 
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
+    public final Expr callee;
+    public final Token paren;
+    public final List<Expr> arguments;
+    public Stmt.Function cachedDeclaration;
+    public LoxCallable cachedNative;
  }
- static class Grouping extends Expr {
+ public static class Grouping extends Expr {
     Grouping(Expr expression) {
     this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitGroupingExpr(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
  }
- static class Literal extends Expr {
+ public static class Literal extends Expr {
     Literal(Object value) {
     this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitLiteralExpr(this);
     }
 
-    final Object value;
+    public final Object value;
  }
- static class Logical extends Expr {
+ public static class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
     this.left = left;
     this.operator = operator;
@@ -92,29 +96,29 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitLogicalExpr(this);
     }
 
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
  }
- static class Unary extends Expr {
+ public static class Unary extends Expr {
     Unary(Token operator, Expr right) {
     this.operator = operator;
     this.right = right;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitUnaryExpr(this);
     }
 
-    final Token operator;
-    final Expr right;
+    public final Token operator;
+    public final Expr right;
  }
- static class Ternary extends Expr {
+ public static class Ternary extends Expr {
     Ternary(Expr condition, Token operator1, Expr thenBranch, Token operator2, Expr elseBranch) {
     this.condition = condition;
     this.operator1 = operator1;
@@ -124,28 +128,30 @@ abstract class Expr {
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitTernaryExpr(this);
     }
 
-    final Expr condition;
-    final Token operator1;
-    final Expr thenBranch;
-    final Token operator2;
-    final Expr elseBranch;
+    public final Expr condition;
+    public final Token operator1;
+    public final Expr thenBranch;
+    public final Token operator2;
+    public final Expr elseBranch;
  }
- static class Variable extends Expr {
+ public static class Variable extends Expr {
     Variable(Token name) {
     this.name = name;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitVariableExpr(this);
     }
 
-    final Token name;
+    public final Token name;
+    public int depth = -1;
+    public int slot;
  }
 
- abstract <R> R accept(Visitor<R> visitor);
+ public abstract <R> R accept(Visitor<R> visitor);
 }
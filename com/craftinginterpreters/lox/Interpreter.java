@@ -1,43 +1,80 @@
 package com.craftinginterpreters.lox;
 
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object> ,
-                                Stmt.Visitor<Void>{
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+                                Stmt.Visitor<Completion>{
+    final LoxContext context;
+    final Environment globals;
+    private Environment environment;
+    //set by a return statement, read back by the call that ran it
+    Object returnValue = null;
+    //set by a tail call, see Completion.TAIL_CALL
+    LoxCallable tailCallee = null;
+    Environment tailFrame = null;
+    //set for --engine=tiered: hot functions and loops move on to JVM classes
+    Tiering tiering = null;
+    //set by --sample; LoxFunction keeps its shadow stack
+    Sampler sampler = null;
+    //calls until the next LoxEvents.FunctionCall; per interpreter so that
+    //scripts on different threads don't all write one shared counter
+    int callCountdown = LoxEvents.CALL_SAMPLE_INTERVAL;
     
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() {return 0;}
-            
-            @Override
-            public Object call(Interpreter interpreter, 
-                                List<Object> arguments){
-                                    return (double) System.currentTimeMillis()/ 1000.0;
-                                }
+    //natives are made once for the process and hold no state, so a call
+    //site that caches one (see checkCall) keeps no execution alive
+    private static final LoxCallable CLOCK = new LoxCallable() {
+        @Override
+        public int arity() {return 0;}
+
+        @Override
+        public Object call0(Interpreter interpreter) {
+            return (double) System.currentTimeMillis()/ 1000.0;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return call0(interpreter);
+        }
+
+        @Override
+        public String toString() { return "<native fn>";}
+    };
+
+    Interpreter(LoxContext context) {
+        this(context, new Environment());
+        globals.define(Symbol.intern("clock"), CLOCK);
+        Concurrency.define(globals);
+    }
+
+    Interpreter(LoxContext context, Environment globals) {
+        this.context = context;
+        this.globals = globals;
+        this.environment = globals;
+    }
+
+    //for a spawned task: its own call state over the same globals. It runs
+    //on the tree-walker alone: the call and back-edge counters and the
+    //compiled code hang off the tree, which every task shares, and none of
+    //that is synchronized. With no tiering of its own it ignores them.
+    Interpreter fork() {
+        return new Interpreter(context, globals);
+    }
 
-            @Override
-            public String toString() { return "<native fn>";}
-        });
+    //called on a forked interpreter when its task ends; see Profiler
+    void taskEnded() {
     }
     void interpret(List<Stmt> statements, boolean isPrompt) {
         try {
             for(Stmt statement : statements) {
                 if(isPrompt && statement instanceof Stmt.Expression) {
                     Expr expr = ((Stmt.Expression)statement).expression;
-                    System.out.println(stringify(evaluate(expr)));
+                    context.out.println(stringify(evaluate(expr)));
                 }
                 else execute(statement);
             }
         } catch(RuntimeError error) {
-            Lox.runTimeError(error);
+            context.runTimeError(error);
         }
     }
 
@@ -89,13 +126,12 @@ class Interpreter implements Expr.Visitor<Object> ,
 
     @Override 
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
     
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if(distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if(depth != -1) {
+            return environment.getAt(depth, slot);
         } else{
             return globals.get(name);
         }
@@ -149,23 +185,90 @@ class Interpreter implements Expr.Visitor<Object> ,
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);//expr.callee was a function name, callee= LoxFunction
+        return call(callee, expr);
+    }
+
+    private Object call(Object callee, Expr.Call expr) {
+        //inline cache hit: this site already checked a call to the same
+        //function, so skip the type and arity checks. Functions are keyed
+        //by declaration, which every closure made from it shares.
+        if(callee instanceof LoxFunction &&
+           ((LoxFunction)callee).declaration == expr.cachedDeclaration) {
+            LoxFunction function = (LoxFunction)callee;
+            //the arguments go straight into the new frame
+            Environment frame = function.newFrame();
+            for(Expr argument : expr.arguments) {
+                frame.define(evaluate(argument));
+            }
+            return function.invoke(this, frame);
+        }
+
+        try {
+            return callChecked(callee, expr);
+        } catch(NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for(Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    //each argument is evaluated before the checks, as it always was
+    private Object callChecked(Object callee, Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        switch(arguments.size()) {
+            case 0:
+                return checkCall(callee, expr).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkCall(callee, expr).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkCall(callee, expr).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return checkCall(callee, expr).call3(this, a, b, c);
+            }
+            default: {
+                Object[] values = new Object[arguments.size()];
+                for(int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return checkCall(callee, expr).call(this, values);
+            }
         }
+    }
+
+    LoxCallable checkCall(Object callee, Expr.Call expr) {
+        //return the local, not the field: a CompiledScript shares this node
+        //with other threads, which may have replaced the entry since the compare
+        if(callee == expr.cachedNative && callee != null) return (LoxCallable)callee;
 
         if(!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, 
             "Can only call functions and classes.");
         }
         LoxCallable function = (LoxCallable)callee;
-        if(arguments.size() != function.arity()) {
+        if(expr.arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got"
-             + arguments.size() + ".");
+             + expr.arguments.size() + ".");
+        }
+
+        //remember what passed the checks for next time. A CompiledScript
+        //shares this node between executions, so only what belongs to no
+        //execution is kept: a declaration, or one of the static natives.
+        if(function instanceof LoxFunction) {
+            //memoized functions have to go through call to use their cache
+            Stmt.Function declaration = ((LoxFunction)function).declaration;
+            if(declaration.memo == null) expr.cachedDeclaration = declaration;
+        } else {
+            expr.cachedNative = function;
         }
-        return function.call(this, arguments);
+        return function;
     }
+
     private void checkNumberOperand(Token operator, Object operand) {
         if(operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number");
@@ -181,20 +284,20 @@ class Interpreter implements Expr.Visitor<Object> ,
         throw new RuntimeError(operator, "Division by zero not allowed.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if(object == null) return false;
         if(object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if(a == null && b == null) return true;
         if(a == null) return false;
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if(object == null) return "nil";
 
         if(object instanceof Double) {
@@ -212,22 +315,37 @@ class Interpreter implements Expr.Visitor<Object> ,
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    //Profiler overrides this and executeBody; nothing else does, so
+    //without --profile both stay cheap enough to inline
+    Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    //one activation of a Lox function's body, in its filled frame
+    Completion executeBody(Stmt.Function function, Environment environment) {
+        return executeBlock(function.body, environment);
     }
-    void executeBlock(List<Stmt> statements, Environment environment) {
+
+    //declarations at the top level go to the name-keyed globals,
+    //anything inside a block or function fills the next frame slot
+    private void define(Token name, Object value) {
+        if(environment == globals) {
+            globals.define(name.symbol(), value);
+        } else {
+            environment.define(value);
+        }
+    }
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
 
         try{
             this.environment = environment;
 
             for(Stmt statement : statements) {
-                execute(statement);
+                Completion completion = execute(statement);
+                if(completion != Completion.NORMAL) return completion;
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
@@ -235,84 +353,156 @@ class Interpreter implements Expr.Visitor<Object> ,
 
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt){
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt){
+        //the Resolver gave a block that declares nothing no scope of its own
+        if(stmt.frameSize == 0) return executeBlock(stmt.statements, environment);
+        return executeBlock(stmt.statements,
+                            new Environment(environment, stmt.frameSize));
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt){
+    public Completion visitExpressionStmt(Stmt.Expression stmt){
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        define(stmt.name, function);
+        return Completion.NORMAL;
     }
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if( isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if(stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        context.out.println(stringify(value));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.tailCall) {
+            //a callee the call site has already checked doesn't run here:
+            //its filled frame goes back to the caller's invoke loop, so
+            //the Java stack stays the same depth
+            Expr.Call call = (Expr.Call)stmt.value;
+            Object callee = evaluate(call.callee);
+            if(callee instanceof LoxFunction && isTailCallable((LoxFunction)callee, call)) {
+                LoxFunction function = (LoxFunction)callee;
+                Environment frame = function.newFrame();
+                for(Expr argument : call.arguments) {
+                    frame.define(evaluate(argument));
+                }
+                tailCallee = function;
+                tailFrame = frame;
+                return Completion.TAIL_CALL;
+            }
+            returnValue = call(callee, call);
+            return Completion.RETURN;
+        }
+
         Object value = null;
         if(stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+    //memoized functions never enter the inline cache, so they are checked
+    //here. A tail call into one skips its lookup, but the outermost call
+    //of the chain still stores the result.
+    static boolean isTailCallable(LoxFunction function, Expr.Call call) {
+        if(function.declaration == call.cachedDeclaration) return true;
+        return function.declaration.memo != null &&
+               function.arity() == call.arguments.size();
     }
+
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if(stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, value);
+        return Completion.NORMAL;
     }
     
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while(isTruthy(evaluate(stmt.condition))) {
-            try{
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        //a forked interpreter (see fork) has no tiering and keeps walking
+        //the tree
+        if(tiering != null && stmt.compiled != null) {
+            return tiering.execute(stmt, environment);
+        }
 
-            execute(stmt.body);
-        } catch(Break breakval){
-                break;
+        while(isTruthy(evaluate(stmt.condition))) {
+            Completion completion = execute(stmt.body);
+            if(completion == Completion.BREAK) break;
+            if(completion != Completion.NORMAL) return completion;
+            //on-stack replacement: the compiled loop carries on from the
+            //next condition check in the same environment
+            if(tiering != null && ++stmt.backEdges == Tiering.HOT_BACK_EDGES &&
+               tiering.compile(stmt) != null) {
+                return tiering.execute(stmt, environment);
             }
         }   
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        
-        throw new Break();
+    public Completion visitForStmt(Stmt.For stmt) {
+        Environment previous = this.environment;
+        try {
+            //one frame for the loop variable, shared by every iteration
+            if(stmt.frameSize != 0) {
+                this.environment = new Environment(previous, stmt.frameSize);
+            }
+            if(stmt.initializer != null) execute(stmt.initializer);
+            //compiled code takes over after the initializer, unless the
+            //loop variable isn't what it was compiled for
+            if(tiering != null && stmt.compiled != null) {
+                Completion completion = tiering.execute(stmt, environment);
+                if(completion != null) return completion;
+            }
+            while(stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+                Completion completion = execute(stmt.body);
+                if(completion == Completion.BREAK) break;
+                if(completion != Completion.NORMAL) return completion;
+                if(stmt.increment != null) evaluate(stmt.increment);
+                //see visitWhileStmt; the loop's frame is already set up
+                if(tiering != null && ++stmt.backEdges == Tiering.HOT_BACK_EDGES &&
+                   tiering.compile(stmt, environment) != null) {
+                    Completion rest = tiering.execute(stmt, environment);
+                    if(rest != null) return rest;
+                }
+            }
+            return Completion.NORMAL;
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    @Override
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr.name);
-        if(distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if(expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
             globals.assign(expr.name, value);
         }
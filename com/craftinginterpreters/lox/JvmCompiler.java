@@ -0,0 +1,1275 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+//tier 1 of --engine=tiered: writes a hot function or loop out as a class of
+//its own and loads it with Lookup.defineHiddenClass, so HotSpot compiles
+//the Lox code like any other Java. See Tiering for when it runs.
+//
+//It takes the whole language but function declarations, which would need
+//the locals around them kept in Environments; code with one throws
+//Unsupported and stays on tier 0. Locals declared in the compiled code
+//live in JVM locals, as a double when every value stored into one is
+//provably a number and as an Object otherwise. Anything from outside,
+//globals and enclosing locals, is read and written through its Environment
+//like the tree-walker does, and each operator on Objects calls a helper in
+//Tiering with the tree-walker's checks and messages, so compiled code
+//fails exactly where tier 0 would.
+//
+//Speculation is kept to code that can simply be run again. A function
+//with no effects outside its own locals (no print, no writes to outer
+//variables or globals, no calls but ones through a global to itself) is
+//compiled assuming the parameter types of the call that made it hot and
+//that the global it calls still names it. Its recursion then becomes a
+//static call on unboxed doubles. When a guard fails the call unwinds
+//with Tiering.Deopt and runs again on tier 0, which can't tell the
+//difference since nothing the compiled code did was visible.
+final class JvmCompiler implements Expr.Visitor<JvmCompiler.Kind>, Stmt.Visitor<Void> {
+    //what a compiled expression leaves on the stack
+    enum Kind {
+        NUMBER,
+        OBJECT
+    }
+
+    static final class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final String LOX = "com/craftinginterpreters/lox/";
+    private static final String INTERPRETER = LOX + "Interpreter";
+    private static final String ENVIRONMENT = LOX + "Environment";
+    private static final String TIERING = LOX + "Tiering";
+    private static final String COMPLETION = LOX + "Completion";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String EXECUTE = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";)L" + COMPLETION + ";";
+
+    //a local declared in the compiled code, or a parameter, or the
+    //variable of the loop being compiled
+    private static final class Local {
+        Kind kind = Kind.NUMBER;
+        //every value stored into it; the kind is OBJECT if any of them is
+        final List<Expr> values = new ArrayList<>();
+        int index = -1;
+    }
+
+    private final ClassFile file;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, String> constantNames = new IdentityHashMap<>();
+
+    //filled in by Analysis before any code is written
+    private final Map<Expr, Local> references = new IdentityHashMap<>();
+    private final Map<Stmt.Var, Local> declarations = new IdentityHashMap<>();
+    private final List<Local> locals = new ArrayList<>();
+    private final List<Expr.Call> calls = new ArrayList<>();
+    private final List<Stmt.Return> returns = new ArrayList<>();
+    private boolean effects = false;
+
+    //set when the function being compiled runs as a static method that
+    //calls itself directly, see compile(Stmt.Function, ...)
+    private Stmt.Function self = null;
+    private Local[] parameters = null;
+    private Kind returnKind = Kind.OBJECT;
+    private ClassFile.Label start = null;
+
+    private ClassFile.Code code;
+    private int interpreterLocal;
+    private int globalsLocal;
+    //the Environment just outside the compiled code
+    private int baseLocal;
+    //frames the tree-walker would have made between the compiled code's
+    //start and the current point; a local this many or more scopes out
+    //lives in the Environment at baseLocal
+    private int frames = 0;
+    private ClassFile.Label breakTarget = null;
+
+    private JvmCompiler(String name) {
+        this.file = new ClassFile(LOX + "Lox$" + name, LOX + "CompiledCode");
+    }
+
+    //a function body, to be run in a frame holding its arguments. With
+    //speculate, the arguments frame holds now decide which parameters are
+    //compiled as numbers.
+    static CompiledCode compile(Stmt.Function function, Environment frame, boolean speculate) {
+        JvmCompiler compiler = new JvmCompiler(function.name.lexeme);
+        Local[] scope = new Local[function.frameSize];
+        for(int i = 0; i < function.params.size(); i++) {
+            scope[i] = compiler.newLocal(speculate && frame.get(i) instanceof Double
+                                         ? Kind.NUMBER : Kind.OBJECT);
+        }
+        Analysis analysis = compiler.new Analysis(function.params.size());
+        analysis.scope(scope, function.body);
+
+        if(speculate && function.memo == null && !compiler.effects) {
+            compiler.self = function;
+            compiler.parameters = new Local[function.params.size()];
+            System.arraycopy(scope, 0, compiler.parameters, 0, compiler.parameters.length);
+            compiler.returnKind = Kind.NUMBER;
+        } else {
+            //without speculation nothing is known about the arguments
+            for(int i = 0; i < function.params.size(); i++) scope[i].kind = Kind.OBJECT;
+        }
+        compiler.inferKinds(function.body);
+
+        if(compiler.self != null) {
+            compiler.directFunction(function);
+        } else {
+            compiler.function(function);
+        }
+        return compiler.load();
+    }
+
+    //a loop, to be run from its next condition check on in the environment
+    //the tree-walker runs it in
+    static CompiledCode compile(Stmt.While loop) {
+        JvmCompiler compiler = new JvmCompiler("while");
+        compiler.new Analysis(-1).statement(loop);
+        compiler.inferKinds(null);
+
+        compiler.beginExecute();
+        compiler.code.local(ALOAD, 2);
+        compiler.code.local(ASTORE, compiler.baseLocal);
+        compiler.loop(loop);
+        compiler.normalCompletion();
+        return compiler.load();
+    }
+
+    //a for loop after its initializer, in the frame that holds its
+    //variable when it declares one. With speculate, the variable's value
+    //now decides whether it is compiled as a number.
+    static CompiledCode compile(Stmt.For loop, Environment frame, boolean speculate) {
+        JvmCompiler compiler = new JvmCompiler("for");
+        Local[] scope = new Local[loop.frameSize];
+        for(int i = 0; i < scope.length; i++) {
+            scope[i] = compiler.newLocal(speculate && frame.get(i) instanceof Double
+                                         ? Kind.NUMBER : Kind.OBJECT);
+        }
+        Analysis analysis = compiler.new Analysis(-1);
+        analysis.loop(loop, scope);
+        compiler.inferKinds(null);
+
+        compiler.beginExecute();
+        ClassFile.Label deoptimize = new ClassFile.Label();
+        if(scope.length == 0) {
+            compiler.code.local(ALOAD, 2);
+            compiler.code.local(ASTORE, compiler.baseLocal);
+        } else {
+            compiler.code.local(ALOAD, 2);
+            compiler.code.field(GETFIELD, ENVIRONMENT, "enclosing", "L" + ENVIRONMENT + ";");
+            compiler.code.local(ASTORE, compiler.baseLocal);
+            compiler.loadFrame(scope, deoptimize);
+            compiler.frames = 1;
+        }
+        compiler.loopFromCondition(loop);
+        compiler.normalCompletion();
+        compiler.deoptimizeAt(deoptimize);
+        return compiler.load();
+    }
+
+    private Local newLocal(Kind kind) {
+        Local local = new Local();
+        local.kind = kind;
+        locals.add(local);
+        return local;
+    }
+
+    //walks the code to be compiled once before any of it is written: maps
+    //every use of a local to its Local, records what gets stored into each,
+    //and notes anything with an effect outside the compiled code
+    private final class Analysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final List<Local[]> scopes = new ArrayList<>();
+        private final List<Integer> declared = new ArrayList<>();
+        //how many arguments a call to itself takes, or -1 for a loop
+        private final int arity;
+
+        Analysis(int arity) {
+            this.arity = arity;
+        }
+
+        void scope(Local[] scope, List<Stmt> statements) {
+            int count = 0;
+            while(count < scope.length && scope[count] != null) count++;
+            scopes.add(scope);
+            declared.add(count);
+            for(Stmt statement : statements) statement(statement);
+            scopes.remove(scopes.size() - 1);
+            declared.remove(declared.size() - 1);
+        }
+
+        //the compiled loop itself; its initializer already ran on tier 0
+        void loop(Stmt.For loop, Local[] scope) {
+            if(scope.length != 0) {
+                scopes.add(scope);
+                declared.add(scope.length);
+            }
+            if(loop.condition != null) expression(loop.condition);
+            if(loop.increment != null) expression(loop.increment);
+            statement(loop.body);
+            if(scope.length != 0) {
+                scopes.remove(scopes.size() - 1);
+                declared.remove(declared.size() - 1);
+            }
+        }
+
+        void statement(Stmt stmt) {
+            stmt.accept(this);
+        }
+
+        private void expression(Expr expr) {
+            expr.accept(this);
+        }
+
+        //the Local a use at this depth and slot names, or null if it is
+        //from outside the compiled code
+        private Local resolve(int depth, int slot) {
+            if(depth == -1 || depth >= scopes.size()) return null;
+            return scopes.get(scopes.size() - 1 - depth)[slot];
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            if(stmt.frameSize == 0) {
+                for(Stmt statement : stmt.statements) statement(statement);
+                return null;
+            }
+            scope(new Local[stmt.frameSize], stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            throw new Unsupported("function declaration");
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            if(stmt.elseBranch != null) statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            effects = true;
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            returns.add(stmt);
+            if(stmt.value != null) expression(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if(stmt.initializer != null) expression(stmt.initializer);
+            if(scopes.isEmpty()) throw new Unsupported("global declaration");
+
+            Local local = newLocal(stmt.initializer == null ? Kind.OBJECT : Kind.NUMBER);
+            if(stmt.initializer != null) local.values.add(stmt.initializer);
+            int scope = scopes.size() - 1;
+            int slot = declared.get(scope);
+            scopes.get(scope)[slot] = local;
+            declared.set(scope, slot + 1);
+            declarations.put(stmt, local);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            expression(stmt.condition);
+            statement(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            if(stmt.frameSize == 0) {
+                if(stmt.initializer != null) statement(stmt.initializer);
+                loop(stmt, new Local[0]);
+                return null;
+            }
+            scopes.add(new Local[stmt.frameSize]);
+            declared.add(0);
+            if(stmt.initializer != null) statement(stmt.initializer);
+            if(stmt.condition != null) expression(stmt.condition);
+            if(stmt.increment != null) expression(stmt.increment);
+            statement(stmt.body);
+            scopes.remove(scopes.size() - 1);
+            declared.remove(declared.size() - 1);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expression(expr.value);
+            Local local = resolve(expr.depth, expr.slot);
+            if(local == null) {
+                effects = true;
+            } else {
+                local.values.add(expr.value);
+                references.put(expr, local);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expression(expr.callee);
+            for(Expr argument : expr.arguments) expression(argument);
+            //a call through a global might be to the function itself,
+            //which a guard checks; anything else could do anything
+            if(expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).depth == -1 &&
+               expr.arguments.size() == arity) {
+                calls.add(expr);
+            } else {
+                effects = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            expression(expr.condition);
+            expression(expr.thenBranch);
+            expression(expr.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            Local local = resolve(expr.depth, expr.slot);
+            if(local != null) references.put(expr, local);
+            return null;
+        }
+    }
+
+    //locals start out as numbers and become objects once anything else may
+    //be stored into them; that can change what other values are, so it
+    //goes round until nothing changes. body is null for a loop.
+    private void inferKinds(List<Stmt> body) {
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Local local : locals) {
+                if(local.kind == Kind.OBJECT) continue;
+                for(Expr value : local.values) {
+                    if(kind(value) == Kind.OBJECT) {
+                        local.kind = Kind.OBJECT;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            if(self != null && returnKind == Kind.NUMBER && !returnsNumber(body)) {
+                returnKind = Kind.OBJECT;
+                changed = true;
+            }
+        }
+    }
+
+    private boolean returnsNumber(List<Stmt> body) {
+        if(completesNormally(body)) return false;
+        for(Stmt.Return stmt : returns) {
+            if(stmt.value == null || kind(stmt.value) == Kind.OBJECT) return false;
+        }
+        return true;
+    }
+
+    //whether control can run off the end; loops are assumed to finish
+    private static boolean completesNormally(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            if(!completesNormally(statement)) return false;
+        }
+        return true;
+    }
+
+    private static boolean completesNormally(Stmt stmt) {
+        if(stmt instanceof Stmt.Return || stmt instanceof Stmt.Break) return false;
+        if(stmt instanceof Stmt.Block) return completesNormally(((Stmt.Block)stmt).statements);
+        if(stmt instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)stmt;
+            return branch.elseBranch == null || completesNormally(branch.thenBranch) ||
+                   completesNormally(branch.elseBranch);
+        }
+        return true;
+    }
+
+    private Kind kind(Expr expr) {
+        return expr.accept(kinds);
+    }
+
+    //the kind each expression compiles to, without compiling it
+    private final Expr.Visitor<Kind> kinds = new Expr.Visitor<Kind>() {
+        @Override
+        public Kind visitAssignExpr(Expr.Assign expr) {
+            Local local = references.get(expr);
+            return local == null ? Kind.OBJECT : local.kind;
+        }
+
+        @Override
+        public Kind visitBinaryExpr(Expr.Binary expr) {
+            switch(expr.operator.type) {
+                //these either give a number or throw
+                case MINUS: case SLASH: case STAR:
+                    return Kind.NUMBER;
+                case PLUS:
+                    return kind(expr.left) == Kind.NUMBER && kind(expr.right) == Kind.NUMBER
+                           ? Kind.NUMBER : Kind.OBJECT;
+                default:
+                    return Kind.OBJECT;
+            }
+        }
+
+        @Override
+        public Kind visitCallExpr(Expr.Call expr) {
+            return self != null ? returnKind : Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitGroupingExpr(Expr.Grouping expr) {
+            return kind(expr.expression);
+        }
+
+        @Override
+        public Kind visitLiteralExpr(Expr.Literal expr) {
+            return expr.value instanceof Double ? Kind.NUMBER : Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitLogicalExpr(Expr.Logical expr) {
+            return Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitUnaryExpr(Expr.Unary expr) {
+            return expr.operator.type == TokenType.MINUS ? Kind.NUMBER : Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitTernaryExpr(Expr.Ternary expr) {
+            return kind(expr.thenBranch) == Kind.NUMBER && kind(expr.elseBranch) == Kind.NUMBER
+                   ? Kind.NUMBER : Kind.OBJECT;
+        }
+
+        @Override
+        public Kind visitVariableExpr(Expr.Variable expr) {
+            Local local = references.get(expr);
+            return local == null ? Kind.OBJECT : local.kind;
+        }
+    };
+
+    //execute(interpreter, environment) of the CompiledCode interface, with
+    //the interpreter's globals loaded
+    private void beginExecute() {
+        code = file.method(ACC_PUBLIC, "execute", EXECUTE);
+        interpreterLocal = 1;
+        globalsLocal = code.newLocal(false);
+        baseLocal = code.newLocal(false);
+        code.local(ALOAD, interpreterLocal);
+        code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+        code.local(ASTORE, globalsLocal);
+    }
+
+    //copies a frame's slots into the Locals for them, going to deoptimize
+    //with the value on the stack if one speculated to be a number isn't
+    private void loadFrame(Local[] scope, ClassFile.Label deoptimize) {
+        for(int slot = 0; slot < scope.length; slot++) {
+            Local local = scope[slot];
+            code.local(ALOAD, 2);
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(I)L" + OBJECT + ";");
+            local.index = code.newLocal(local.kind == Kind.NUMBER);
+            if(local.kind == Kind.NUMBER) {
+                code.op(DUP);
+                code.type(INSTANCEOF, DOUBLE);
+                code.jump(IFEQ, deoptimize);
+                unboxChecked();
+                code.local(DSTORE, local.index);
+            } else {
+                code.local(ASTORE, local.index);
+            }
+        }
+    }
+
+    private void deoptimizeAt(ClassFile.Label deoptimize) {
+        code.mark(deoptimize);
+        code.op(POP);
+        code.op(ACONST_NULL);
+        code.op(ARETURN);
+    }
+
+    private void normalCompletion() {
+        code.field(GETSTATIC, COMPLETION, "NORMAL", "L" + COMPLETION + ";");
+        code.op(ARETURN);
+    }
+
+    //a function run the way the tree-walker runs one: the body works on
+    //the frame it is given and hands back a Completion
+    private void function(Stmt.Function function) {
+        beginExecute();
+        code.local(ALOAD, 2);
+        code.field(GETFIELD, ENVIRONMENT, "enclosing", "L" + ENVIRONMENT + ";");
+        code.local(ASTORE, baseLocal);
+        Local[] scope = new Local[function.params.size()];
+        for(int i = 0; i < scope.length; i++) {
+            scope[i] = locals.get(i);
+        }
+        ClassFile.Label unused = new ClassFile.Label();
+        loadFrame(scope, unused);
+        frames = 1;
+        //dead when the body always returns, which the verifier ignores
+        for(Stmt statement : function.body) statement(statement);
+        normalCompletion();
+    }
+
+    //a function that only calls itself: a static body(interpreter, closure,
+    //parameters...) that returns its value and recurses by calling itself,
+    //wrapped in an execute that checks and unboxes the arguments
+    private void directFunction(Stmt.Function function) {
+        StringBuilder descriptor = new StringBuilder("(L" + INTERPRETER + ";L" + ENVIRONMENT + ";");
+        for(Local parameter : parameters) descriptor.append(parameter.kind == Kind.NUMBER ? "D" : "L" + OBJECT + ";");
+        descriptor.append(")").append(returnKind == Kind.NUMBER ? "D" : "L" + OBJECT + ";");
+
+        ClassFile.Code execute = file.method(ACC_PUBLIC, "execute", EXECUTE);
+        code = execute;
+        ClassFile.Label deoptimize = new ClassFile.Label();
+        Local[] arguments = new Local[parameters.length];
+        for(int i = 0; i < arguments.length; i++) {
+            arguments[i] = new Local();
+            arguments[i].kind = parameters[i].kind;
+        }
+        loadFrame(arguments, deoptimize);
+        code.local(ALOAD, 1);
+        code.local(ALOAD, 2);
+        code.field(GETFIELD, ENVIRONMENT, "enclosing", "L" + ENVIRONMENT + ";");
+        for(Local argument : arguments) {
+            code.local(argument.kind == Kind.NUMBER ? DLOAD : ALOAD, argument.index);
+        }
+        code.invoke(INVOKESTATIC, file.name(), "body", descriptor.toString());
+        if(returnKind == Kind.NUMBER) box();
+        int value = code.newLocal(false);
+        code.local(ASTORE, value);
+        code.local(ALOAD, 1);
+        code.local(ALOAD, value);
+        code.field(PUTFIELD, INTERPRETER, "returnValue", "L" + OBJECT + ";");
+        code.field(GETSTATIC, COMPLETION, "RETURN", "L" + COMPLETION + ";");
+        code.op(ARETURN);
+        deoptimizeAt(deoptimize);
+
+        code = file.method(ACC_PRIVATE | ACC_STATIC, "body", descriptor.toString());
+        interpreterLocal = 0;
+        baseLocal = 1;
+        int next = 2;
+        for(Local parameter : parameters) {
+            parameter.index = next;
+            next += parameter.kind == Kind.NUMBER ? 2 : 1;
+        }
+        globalsLocal = code.newLocal(false);
+        code.local(ALOAD, interpreterLocal);
+        code.field(GETFIELD, INTERPRETER, "globals", "L" + ENVIRONMENT + ";");
+        code.local(ASTORE, globalsLocal);
+        start = new ClassFile.Label();
+        code.mark(start);
+        frames = 1;
+        for(Stmt statement : function.body) statement(statement);
+        //only an OBJECT function can get here, see returnsNumber
+        code.op(ACONST_NULL);
+        code.op(ARETURN);
+    }
+
+    private CompiledCode load() {
+        for(int i = 0; i < constants.size(); i++) {
+            file.field(ACC_STATIC | ACC_FINAL, "k" + i, descriptor(constants.get(i)));
+        }
+
+        //the constants come in as class data, which only code in the class
+        //itself can fetch, so they go into static finals, which HotSpot
+        //also treats as constant
+        ClassFile.Code init = file.method(ACC_STATIC, "<clinit>", "()V");
+        init.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+                    "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        init.ldc("_");
+        init.ldcClass(OBJECT);
+        init.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+                    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)L" + OBJECT + ";");
+        init.type(CHECKCAST, "[L" + OBJECT + ";");
+        int array = init.newLocal(false);
+        init.local(ASTORE, array);
+        for(int i = 0; i < constants.size(); i++) {
+            String descriptor = descriptor(constants.get(i));
+            init.local(ALOAD, array);
+            init.iconst(i);
+            init.op(AALOAD);
+            init.type(CHECKCAST, descriptor.substring(1, descriptor.length() - 1));
+            init.field(PUTSTATIC, file.name(), "k" + i, descriptor);
+        }
+        init.op(RETURN);
+
+        ClassFile.Code constructor = file.method(0, "<init>", "()V");
+        constructor.local(ALOAD, 0);
+        constructor.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        constructor.op(RETURN);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClassWithClassData(file.toBytes(), constants.toArray(), true);
+            return (CompiledCode)lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class)).invoke();
+        } catch(RuntimeException | Error error) {
+            throw error;
+        } catch(Throwable error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static String descriptor(Object constant) {
+        if(constant instanceof Token) return "L" + LOX + "Token;";
+        if(constant instanceof Expr.Call) return "L" + LOX + "Expr$Call;";
+        return "L" + LOX + "Stmt$Function;";
+    }
+
+    //pushes a Token, Expr.Call or Stmt.Function from the tree
+    private void constant(Object value) {
+        String name = constantNames.get(value);
+        if(name == null) {
+            name = "k" + constants.size();
+            constants.add(value);
+            constantNames.put(value, name);
+        }
+        code.field(GETSTATIC, file.name(), name, descriptor(value));
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)L" + DOUBLE + ";");
+    }
+
+    //a Double known to be one, as a double
+    private void unboxChecked() {
+        code.type(CHECKCAST, DOUBLE);
+        code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    private void statement(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private Kind expression(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void object(Expr expr) {
+        if(expression(expr) == Kind.NUMBER) box();
+    }
+
+    //only for an expression whose kind is NUMBER
+    private void number(Expr expr) {
+        if(expression(expr) != Kind.NUMBER) throw new IllegalStateException("Not a number.");
+    }
+
+    private void as(Kind kind, Expr expr) {
+        if(kind == Kind.NUMBER) {
+            number(expr);
+        } else {
+            object(expr);
+        }
+    }
+
+    //evaluates expr for its effects only
+    private void effect(Expr expr) {
+        if(expr instanceof Expr.Assign) {
+            assign((Expr.Assign)expr, false);
+            return;
+        }
+        code.op(expression(expr) == Kind.NUMBER ? POP2 : POP);
+    }
+
+    //jumps to target when expr's truthiness is when, and falls through otherwise
+    private void branch(Expr expr, boolean when, ClassFile.Label target) {
+        if(expr instanceof Expr.Grouping) {
+            branch(((Expr.Grouping)expr).expression, when, target);
+            return;
+        }
+        if(expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            branch(((Expr.Unary)expr).right, !when, target);
+            return;
+        }
+        if(expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            boolean or = logical.operator.type == TokenType.OR;
+            if(or == when) {
+                branch(logical.left, when, target);
+                branch(logical.right, when, target);
+            } else {
+                ClassFile.Label skip = new ClassFile.Label();
+                branch(logical.left, !when, skip);
+                branch(logical.right, when, target);
+                code.mark(skip);
+            }
+            return;
+        }
+        if(expr instanceof Expr.Binary && compare((Expr.Binary)expr, when, target)) return;
+
+        Kind kind = expression(expr);
+        if(kind == Kind.NUMBER) {
+            //numbers are always true
+            code.op(POP2);
+            if(when) code.jump(GOTO, target);
+            return;
+        }
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        code.jump(when ? IFNE : IFEQ, target);
+    }
+
+    //the comparisons, branching on their result; false for other operators
+    private boolean compare(Expr.Binary expr, boolean when, ClassFile.Label target) {
+        TokenType type = expr.operator.type;
+        boolean numbers = kind(expr.left) == Kind.NUMBER && kind(expr.right) == Kind.NUMBER;
+        switch(type) {
+            case EQUAL_EQUAL: case BANG_EQUAL: {
+                boolean equal = (type == TokenType.EQUAL_EQUAL) == when;
+                if(numbers) {
+                    //Double.equals, as Interpreter.isEqual uses: NaN equals
+                    //itself and 0 doesn't equal -0
+                    number(expr.left);
+                    number(expr.right);
+                    code.invoke(INVOKESTATIC, DOUBLE, "compare", "(DD)I");
+                    code.jump(equal ? IFEQ : IFNE, target);
+                } else {
+                    object(expr.left);
+                    object(expr.right);
+                    code.invoke(INVOKESTATIC, INTERPRETER, "isEqual",
+                                "(L" + OBJECT + ";L" + OBJECT + ";)Z");
+                    code.jump(equal ? IFNE : IFEQ, target);
+                }
+                return true;
+            }
+            case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+                break;
+            default:
+                return false;
+        }
+
+        if(!numbers) {
+            object(expr.left);
+            object(expr.right);
+            constant(expr.operator);
+            String helper = type == TokenType.GREATER ? "greater"
+                          : type == TokenType.GREATER_EQUAL ? "greaterEqual"
+                          : type == TokenType.LESS ? "less" : "lessEqual";
+            code.invoke(INVOKESTATIC, TIERING, helper,
+                        "(L" + OBJECT + ";L" + OBJECT + ";L" + LOX + "Token;)Z");
+            code.jump(when ? IFNE : IFEQ, target);
+            return true;
+        }
+
+        number(expr.left);
+        number(expr.right);
+        //a NaN on either side makes every comparison false: DCMPG gives 1
+        //for it, which fails < and <=, and DCMPL gives -1, failing > and >=
+        switch(type) {
+            case LESS:
+                code.op(DCMPG);
+                code.jump(when ? IFLT : IFGE, target);
+                break;
+            case LESS_EQUAL:
+                code.op(DCMPG);
+                code.jump(when ? IFLE : IFGT, target);
+                break;
+            case GREATER:
+                code.op(DCMPL);
+                code.jump(when ? IFGT : IFLE, target);
+                break;
+            default:
+                code.op(DCMPL);
+                code.jump(when ? IFGE : IFLT, target);
+                break;
+        }
+        return true;
+    }
+
+    //a condition used as a value, as a Boolean
+    private Kind truth(Expr expr) {
+        ClassFile.Label isTrue = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        branch(expr, true, isTrue);
+        code.field(GETSTATIC, BOOLEAN, "FALSE", "L" + BOOLEAN + ";");
+        code.jump(GOTO, end);
+        code.mark(isTrue);
+        code.field(GETSTATIC, BOOLEAN, "TRUE", "L" + BOOLEAN + ";");
+        code.mark(end);
+        return Kind.OBJECT;
+    }
+
+    private Kind assign(Expr.Assign expr, boolean keep) {
+        Local local = references.get(expr);
+        if(local != null) {
+            if(local.kind == Kind.NUMBER) {
+                number(expr.value);
+                if(keep) code.op(DUP2);
+                code.local(DSTORE, local.index);
+            } else {
+                object(expr.value);
+                if(keep) code.op(DUP);
+                code.local(ASTORE, local.index);
+            }
+            return local.kind;
+        }
+
+        object(expr.value);
+        int value = code.newLocal(false);
+        code.local(ASTORE, value);
+        if(expr.depth != -1) {
+            code.local(ALOAD, baseLocal);
+            code.iconst(expr.depth - frames);
+            code.iconst(expr.slot);
+            code.local(ALOAD, value);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assignAt", "(IIL" + OBJECT + ";)V");
+        } else {
+            code.local(ALOAD, globalsLocal);
+            constant(expr.name);
+            code.local(ALOAD, value);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "assign", "(L" + LOX + "Token;L" + OBJECT + ";)V");
+        }
+        if(keep) code.local(ALOAD, value);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitAssignExpr(Expr.Assign expr) {
+        return assign(expr, true);
+    }
+
+    @Override
+    public Kind visitBinaryExpr(Expr.Binary expr) {
+        TokenType type = expr.operator.type;
+        boolean numbers = kind(expr.left) == Kind.NUMBER && kind(expr.right) == Kind.NUMBER;
+        switch(type) {
+            case MINUS: case STAR: case SLASH: case PLUS:
+                break;
+            default:
+                return truth(expr);
+        }
+
+        if(numbers) {
+            number(expr.left);
+            number(expr.right);
+            switch(type) {
+                case MINUS: code.op(DSUB); break;
+                case STAR: code.op(DMUL); break;
+                case PLUS: code.op(DADD); break;
+                default:
+                    constant(expr.operator);
+                    code.invoke(INVOKESTATIC, TIERING, "divide", "(DDL" + LOX + "Token;)D");
+                    break;
+            }
+            return Kind.NUMBER;
+        }
+
+        object(expr.left);
+        object(expr.right);
+        constant(expr.operator);
+        String operands = "(L" + OBJECT + ";L" + OBJECT + ";L" + LOX + "Token;)";
+        switch(type) {
+            case MINUS: code.invoke(INVOKESTATIC, TIERING, "subtract", operands + "D"); break;
+            case STAR: code.invoke(INVOKESTATIC, TIERING, "multiply", operands + "D"); break;
+            case SLASH: code.invoke(INVOKESTATIC, TIERING, "divide", operands + "D"); break;
+            default:
+                code.invoke(INVOKESTATIC, TIERING, "add", operands + "L" + OBJECT + ";");
+                return Kind.OBJECT;
+        }
+        return Kind.NUMBER;
+    }
+
+    @Override
+    public Kind visitCallExpr(Expr.Call expr) {
+        if(self != null) {
+            code.local(ALOAD, interpreterLocal);
+            selfCallee(expr);
+            selfArguments(expr);
+            code.invoke(INVOKESTATIC, file.name(), "body", bodyDescriptor());
+            return returnKind;
+        }
+
+        code.local(ALOAD, interpreterLocal);
+        object(expr.callee);
+        constant(expr);
+        int count = expr.arguments.size();
+        String descriptor = "(L" + INTERPRETER + ";L" + OBJECT + ";L" + LOX + "Expr$Call;";
+        if(count <= 3) {
+            for(Expr argument : expr.arguments) {
+                object(argument);
+                descriptor += "L" + OBJECT + ";";
+            }
+            code.invoke(INVOKESTATIC, TIERING, "call" + count, descriptor + ")L" + OBJECT + ";");
+        } else {
+            arguments(expr.arguments);
+            code.invoke(INVOKESTATIC, TIERING, "call",
+                        descriptor + "[L" + OBJECT + ";)L" + OBJECT + ";");
+        }
+        return Kind.OBJECT;
+    }
+
+    private void arguments(List<Expr> arguments) {
+        code.iconst(arguments.size());
+        code.type(ANEWARRAY, OBJECT);
+        for(int i = 0; i < arguments.size(); i++) {
+            code.op(DUP);
+            code.iconst(i);
+            object(arguments.get(i));
+            code.op(AASTORE);
+        }
+    }
+
+    private String bodyDescriptor() {
+        StringBuilder descriptor = new StringBuilder("(L" + INTERPRETER + ";L" + ENVIRONMENT + ";");
+        for(Local parameter : parameters) descriptor.append(parameter.kind == Kind.NUMBER ? "D" : "L" + OBJECT + ";");
+        return descriptor.append(")").append(returnKind == Kind.NUMBER ? "D" : "L" + OBJECT + ";").toString();
+    }
+
+    //the callee, checked to still be this function, as its closure
+    private void selfCallee(Expr.Call expr) {
+        object(expr.callee);
+        constant(self);
+        code.invoke(INVOKESTATIC, TIERING, "self",
+                    "(L" + OBJECT + ";L" + LOX + "Stmt$Function;)L" + ENVIRONMENT + ";");
+    }
+
+    //the arguments as the parameters take them, unboxing under a guard
+    private void selfArguments(Expr.Call expr) {
+        for(int i = 0; i < parameters.length; i++) {
+            Expr argument = expr.arguments.get(i);
+            if(parameters[i].kind == Kind.OBJECT) {
+                object(argument);
+            } else if(kind(argument) == Kind.NUMBER) {
+                number(argument);
+            } else {
+                object(argument);
+                code.invoke(INVOKESTATIC, TIERING, "unbox", "(L" + OBJECT + ";)D");
+            }
+        }
+    }
+
+    @Override
+    public Kind visitGroupingExpr(Expr.Grouping expr) {
+        return expression(expr.expression);
+    }
+
+    @Override
+    public Kind visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value instanceof Double) {
+            code.ldc((double)(Double)expr.value);
+            return Kind.NUMBER;
+        }
+        if(expr.value instanceof String) {
+            code.ldc((String)expr.value);
+        } else if(expr.value instanceof Boolean) {
+            code.field(GETSTATIC, BOOLEAN, (Boolean)expr.value ? "TRUE" : "FALSE", "L" + BOOLEAN + ";");
+        } else {
+            code.op(ACONST_NULL);
+        }
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitLogicalExpr(Expr.Logical expr) {
+        //the value of whichever side decided it, as the tree-walker does
+        ClassFile.Label end = new ClassFile.Label();
+        object(expr.left);
+        code.op(DUP);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP);
+        object(expr.right);
+        code.mark(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitUnaryExpr(Expr.Unary expr) {
+        if(expr.operator.type == TokenType.BANG) return truth(expr);
+
+        if(kind(expr.right) == Kind.NUMBER) {
+            number(expr.right);
+            code.op(DNEG);
+        } else {
+            object(expr.right);
+            constant(expr.operator);
+            code.invoke(INVOKESTATIC, TIERING, "negate", "(L" + OBJECT + ";L" + LOX + "Token;)D");
+        }
+        return Kind.NUMBER;
+    }
+
+    @Override
+    public Kind visitTernaryExpr(Expr.Ternary expr) {
+        Kind kind = kind(expr);
+        ClassFile.Label otherwise = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        branch(expr.condition, false, otherwise);
+        as(kind, expr.thenBranch);
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        as(kind, expr.elseBranch);
+        code.mark(end);
+        return kind;
+    }
+
+    @Override
+    public Kind visitVariableExpr(Expr.Variable expr) {
+        Local local = references.get(expr);
+        if(local != null) {
+            code.local(local.kind == Kind.NUMBER ? DLOAD : ALOAD, local.index);
+            return local.kind;
+        }
+        if(expr.depth == -1) {
+            code.local(ALOAD, globalsLocal);
+            constant(expr.name);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "get", "(L" + LOX + "Token;)L" + OBJECT + ";");
+            return Kind.OBJECT;
+        }
+        code.local(ALOAD, baseLocal);
+        code.iconst(expr.depth - frames);
+        code.iconst(expr.slot);
+        code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)L" + OBJECT + ";");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.frameSize != 0) frames++;
+        for(Stmt statement : stmt.statements) statement(statement);
+        if(stmt.frameSize != 0) frames--;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        effect(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported("function declaration");
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassFile.Label otherwise = new ClassFile.Label();
+        branch(stmt.condition, false, otherwise);
+        statement(stmt.thenBranch);
+        if(stmt.elseBranch == null) {
+            code.mark(otherwise);
+            return null;
+        }
+        ClassFile.Label end = new ClassFile.Label();
+        code.jump(GOTO, end);
+        code.mark(otherwise);
+        statement(stmt.elseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.local(ALOAD, interpreterLocal);
+        object(stmt.expression);
+        code.invoke(INVOKESTATIC, TIERING, "print", "(L" + INTERPRETER + ";L" + OBJECT + ";)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(self != null) {
+            if(stmt.tailCall) {
+                selfTailCall((Expr.Call)stmt.value);
+            } else if(returnKind == Kind.NUMBER) {
+                number(stmt.value);
+                code.op(DRETURN);
+            } else {
+                if(stmt.value == null) {
+                    code.op(ACONST_NULL);
+                } else {
+                    object(stmt.value);
+                }
+                code.op(ARETURN);
+            }
+            return null;
+        }
+
+        if(stmt.tailCall) {
+            //see Interpreter.visitReturnStmt
+            Expr.Call call = (Expr.Call)stmt.value;
+            code.local(ALOAD, interpreterLocal);
+            object(call.callee);
+            constant(call);
+            arguments(call.arguments);
+            code.invoke(INVOKESTATIC, TIERING, "tailCall",
+                        "(L" + INTERPRETER + ";L" + OBJECT + ";L" + LOX + "Expr$Call;[L" + OBJECT + ";)L" + COMPLETION + ";");
+            code.op(ARETURN);
+            return null;
+        }
+
+        code.local(ALOAD, interpreterLocal);
+        if(stmt.value == null) {
+            code.op(ACONST_NULL);
+        } else {
+            object(stmt.value);
+        }
+        code.field(PUTFIELD, INTERPRETER, "returnValue", "L" + OBJECT + ";");
+        code.field(GETSTATIC, COMPLETION, "RETURN", "L" + COMPLETION + ";");
+        code.op(ARETURN);
+        return null;
+    }
+
+    //a call to itself in tail position: new arguments, then back to the top
+    private void selfTailCall(Expr.Call call) {
+        selfCallee(call);
+        int closure = code.newLocal(false);
+        code.local(ASTORE, closure);
+        int[] values = new int[parameters.length];
+        for(int i = 0; i < parameters.length; i++) {
+            Expr argument = call.arguments.get(i);
+            boolean isNumber = parameters[i].kind == Kind.NUMBER;
+            if(!isNumber) {
+                object(argument);
+            } else if(kind(argument) == Kind.NUMBER) {
+                number(argument);
+            } else {
+                object(argument);
+                code.invoke(INVOKESTATIC, TIERING, "unbox", "(L" + OBJECT + ";)D");
+            }
+            values[i] = code.newLocal(isNumber);
+            code.local(isNumber ? DSTORE : ASTORE, values[i]);
+        }
+        code.local(ALOAD, closure);
+        code.local(ASTORE, baseLocal);
+        for(int i = 0; i < parameters.length; i++) {
+            boolean isNumber = parameters[i].kind == Kind.NUMBER;
+            code.local(isNumber ? DLOAD : ALOAD, values[i]);
+            code.local(isNumber ? DSTORE : ASTORE, parameters[i].index);
+        }
+        code.jump(GOTO, start);
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Local local = declarations.get(stmt);
+        if(local.index == -1) local.index = code.newLocal(local.kind == Kind.NUMBER);
+        if(local.kind == Kind.NUMBER) {
+            number(stmt.initializer);
+            code.local(DSTORE, local.index);
+        } else {
+            if(stmt.initializer == null) {
+                code.op(ACONST_NULL);
+            } else {
+                object(stmt.initializer);
+            }
+            code.local(ASTORE, local.index);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt);
+        return null;
+    }
+
+    private void loop(Stmt.While stmt) {
+        ClassFile.Label top = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        ClassFile.Label enclosing = breakTarget;
+        breakTarget = end;
+        code.mark(top);
+        branch(stmt.condition, false, end);
+        statement(stmt.body);
+        code.jump(GOTO, top);
+        code.mark(end);
+        breakTarget = enclosing;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if(stmt.frameSize != 0) frames++;
+        if(stmt.initializer != null) statement(stmt.initializer);
+        loopFromCondition(stmt);
+        if(stmt.frameSize != 0) frames--;
+        return null;
+    }
+
+    private void loopFromCondition(Stmt.For stmt) {
+        ClassFile.Label top = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        ClassFile.Label enclosing = breakTarget;
+        breakTarget = end;
+        code.mark(top);
+        if(stmt.condition != null) branch(stmt.condition, false, end);
+        statement(stmt.body);
+        if(stmt.increment != null) effect(stmt.increment);
+        code.jump(GOTO, top);
+        code.mark(end);
+        breakTarget = enclosing;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.jump(GOTO, breakTarget);
+        return null;
+    }
+}
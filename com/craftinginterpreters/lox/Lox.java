@@ -2,32 +2,111 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.craftinginterpreters.lox.vm.Compiler;
+import com.craftinginterpreters.lox.vm.VM;
+
 public class Lox{
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    //the command line runs one script, or one REPL session, at a time
+    private static final LoxContext context = new LoxContext();
+    private static Interpreter interpreter = new Interpreter(context);
+    //set by --profile, which swaps it in as the interpreter
+    private static Profiler profiler = null;
+    //set by --sample[=MICROS]: how often to sample the Lox call stack, 0 for never
+    private static long sampleInterval = 0;
+    //set by --sample-out=FILE: where the collapsed stacks go
+    private static Path sampleOutput = Paths.get("lox.folded");
+    private static Sampler sampler = null;
+    //tree, tiered, closure or vm; see usage()
+    private static String engine = "tree";
+    //only created when --engine=vm picks the bytecode VM
+    private static VM vm = null;
+    //set by --max-depth=N: how many calls deep the VM's heap frames may go
+    private static int maxDepth = VM.DEFAULT_MAX_DEPTH;
+    //set by --cache=DIR; null leaves resolved programs uncached
+    private static AstCache cache = null;
+    //set by --opt=N; 0 runs the tree exactly as parsed, see Optimizer for the levels
+    private static int optimizationLevel = 0;
+    //set by --memo[=N]: entries kept per pure function, 0 for no memoization
+    private static int memoCapacity = 0;
+    private static final int DEFAULT_MEMO_CAPACITY = 4096;
+    private static List<Memo> memos = new ArrayList<>();
     
     public static void main(String[] args) throws IOException{
-        if(args.length > 1){
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if(args.length == 1){
-            runFile(args[0]);
+        String script = null;
+        for(String arg : args) {
+            if(arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+                if(!engine.equals("tree") && !engine.equals("tiered") &&
+                   !engine.equals("closure") && !engine.equals("vm")) {
+                    usage();
+                }
+            } else if(arg.startsWith("--cache=")) {
+                cache = new AstCache(Paths.get(arg.substring("--cache=".length())));
+            } else if(arg.matches("--opt=[0-2]")) {
+                optimizationLevel = Integer.parseInt(arg.substring("--opt=".length()));
+            } else if(arg.matches("--max-depth=[1-9][0-9]{0,8}")) {
+                maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+            } else if(arg.equals("--profile")) {
+                profiler = new Profiler(context);
+            } else if(arg.equals("--sample")) {
+                sampleInterval = Sampler.DEFAULT_INTERVAL_MICROS;
+            } else if(arg.matches("--sample=[1-9][0-9]{0,8}")) {
+                sampleInterval = Long.parseLong(arg.substring("--sample=".length()));
+            } else if(arg.startsWith("--sample-out=")) {
+                sampleOutput = Paths.get(arg.substring("--sample-out=".length()));
+            } else if(arg.equals("--memo")) {
+                memoCapacity = DEFAULT_MEMO_CAPACITY;
+            } else if(arg.matches("--memo=[1-9][0-9]*")) {
+                memoCapacity = Integer.parseInt(arg.substring("--memo=".length()));
+            } else if(script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                usage();
+            }
+        }
+
+        //only the tree-walker runs through the hooks the profiler needs
+        if(profiler != null) {
+            if(!engine.equals("tree")) usage();
+            interpreter = profiler;
+        }
+        if(engine.equals("vm")) vm = new VM(maxDepth, context.out);
+        if(engine.equals("tiered")) interpreter.tiering = new Tiering(interpreter);
+        //the shadow stack is kept by LoxFunction, which only these engines call
+        if(sampleInterval > 0) {
+            if(!engine.equals("tree") && !engine.equals("tiered")) usage();
+            sampler = new Sampler(sampleInterval, sampleOutput);
+            interpreter.sampler = sampler;
+            sampler.start();
+        }
+
+        if(script != null){
+            runFile(script);
         } else {
             runPrompt();
         }
     }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|tiered|closure|vm] [--opt=0|1|2] [--memo[=n]] [--profile] [--sample[=micros]] [--sample-out=file] [--max-depth=n] [--cache=dir] [script]");
+        System.exit(64);
+    }
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        String srcCode=new String(bytes, Charset.defaultCharset()); 
-        run(srcCode, false);
-        if(hadError) System.exit(65);
-        if(hadRuntimeError) System.exit(70);
+        List<Stmt> statements = load(Paths.get(path), cache, context);
+        if(statements != null) execute(statements, false);
+        for(Memo memo : memos) System.err.println("[memo] " + memo);
+        if(profiler != null) profiler.report(System.err);
+        if(sampler != null) sampler.stop();
+        if(context.hadError) System.exit(65);
+        if(context.hadRuntimeError) System.exit(70);
     }
     private static void runPrompt() throws IOException{
         InputStreamReader input = new InputStreamReader(System.in);
@@ -38,50 +117,148 @@ public class Lox{
             String line = reader.readLine();
             if(line == null) break;
             run(line, true);
-            hadError = false;
+            context.hadError = false;
         }
+        if(profiler != null) profiler.report(System.err);
+        if(sampler != null) sampler.stop();
     }
 
     private static void run(String source, boolean isPrompt) {
+        List<Stmt> statements = resolve(new Parser(scan(source, context), context), source.length(), context);
+        if(statements != null) execute(statements, isPrompt);
+    }
+
+    //the whole source is in memory anyway, so scan it into packed arrays
+    private static TokenBuffer scan(CharSequence source, LoxContext context) {
+        LoxEvents.Scan event = new LoxEvents.Scan();
+        event.begin();
+        TokenBuffer tokens = Scanner.scanPacked(source, context);
+        event.end();
+        if(event.shouldCommit()) {
+            event.sourceChars = source.length();
+            event.tokens = tokens.size();
+            event.commit();
+        }
+        return tokens;
+    }
+
+    //a script ready to run, straight from the cache when its source hasn't
+    //changed; null if it has errors
+    static List<Stmt> load(Path path, AstCache cache, LoxContext context) throws IOException {
+        Charset charset = Charset.defaultCharset();
+        ByteBuffer bytes = SourceReader.map(path);
+        if(bytes == null) {
+            //too big for one mapping, so stream it
+            return resolve(new Parser(new Scanner(SourceReader.mapped(path, charset), context), context),
+                           Files.size(path), context);
+        }
+
+        String key = cache == null ? null : AstCache.key(bytes, charset);
+        if(key != null) {
+            List<Stmt> statements = cache.load(key);
+            if(statements != null) return statements;
+        }
 
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        //decoded once and scanned packed, like REPL input
+        List<Stmt> statements = resolve(new Parser(scan(SourceReader.decode(bytes, charset), context), context),
+                                        bytes.remaining(), context);
+        if(statements != null && key != null) cache.store(key, statements);
+        return statements;
+    }
 
-        Parser parser = new Parser(tokens);
+    private static List<Stmt> resolve(Parser parser, long sourceSize, LoxContext context) {
+        //the Parser pulls tokens as it goes instead of waiting for a full list
+        LoxEvents.Parse parse = new LoxEvents.Parse();
+        parse.begin();
         List<Stmt> statements = parser.parse();
+        parse.end();
+        if(parse.shouldCommit()) {
+            parse.sourceSize = sourceSize;
+            parse.tokens = parser.tokenCount();
+            parse.statements = statements.size();
+            parse.commit();
+        }
 
         //stop if error
-        if(hadError) return;
-        Resolver resolver = new Resolver(interpreter);
+        if(context.hadError) return null;
+        LoxEvents.Resolve resolve = new LoxEvents.Resolve();
+        resolve.begin();
+        Resolver resolver = new Resolver(context);
         resolver.resolve(statements);
+        resolve.end();
+        if(resolve.shouldCommit()) {
+            resolve.nodes = resolver.nodeCount();
+            resolve.commit();
+        }
         
         //stop if there was a resolution error
-        if(hadError) return;
-
-        interpreter.interpret(statements, isPrompt);
+        if(context.hadError) return null;
+        return statements;
     }
 
-    static void error(int line, String message){
-        report(line, "", message);
-    }
+    private static void execute(List<Stmt> statements, boolean isPrompt) {
+        //after the cache, which keeps the tree as resolved, so one entry serves every level
+        if(optimizationLevel > 0) {
+            statements = new Optimizer(optimizationLevel).optimize(statements);
+        }
+        //scripts only: a later REPL line could redefine a function a pure
+        //one calls, and its cached results would go stale. The VM compiles
+        //functions to its own objects and doesn't memoize.
+        if(memoCapacity > 0 && !isPrompt && !engine.equals("vm")) {
+            memos = new Purity(memoCapacity).analyze(statements);
+        }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-            "[line " +line + "] Error" + where + ": " + message);
-        hadError = true;
+        LoxEvents.Interpret event = new LoxEvents.Interpret();
+        event.begin();
+        switch(engine) {
+            case "vm":
+                runVm(statements, isPrompt);
+                break;
+            case "closure":
+                runCompiled(statements, isPrompt);
+                break;
+            default:
+                interpreter.interpret(statements, isPrompt);
+        }
+        event.end();
+        if(event.shouldCommit()) {
+            event.engine = engine;
+            event.statements = statements.size();
+            event.commit();
+        }
     }
 
-   static void error(Token token, String message) {
-    if(token.type == TokenType.EOF) {
-        report(token.line, "at end", message);
-    } else {
-        report(token.line, " at " + token.lexeme + "'", message);
+    private static void runCompiled(List<Stmt> statements, boolean isPrompt) {
+        ClosureCompiler compiler = new ClosureCompiler(interpreter);
+        ExecNode[] nodes = new ExecNode[statements.size()];
+        for(int i = 0; i < nodes.length; i++) {
+            Stmt statement = statements.get(i);
+            //the REPL echoes expression statements, so keep their value
+            if(isPrompt && statement instanceof Stmt.Expression) {
+                nodes[i] = compiler.compile(((Stmt.Expression)statement).expression);
+            } else {
+                nodes[i] = compiler.compile(statement);
+            }
+        }
+        try {
+            for(int i = 0; i < nodes.length; i++) {
+                Object value = nodes[i].execute(interpreter.globals);
+                if(isPrompt && statements.get(i) instanceof Stmt.Expression) {
+                    context.out.println(Interpreter.stringify(value));
+                }
+            }
+        } catch(RuntimeError error) {
+            context.runTimeError(error);
+        }
     }
-   }
 
-   static void runTimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n [line" + error.token.line + "]");
-    hadRuntimeError = true;
-   }
+    private static void runVm(List<Stmt> statements, boolean isPrompt) {
+        try {
+            vm.interpret(new Compiler(vm).compile(statements, isPrompt));
+        } catch(Compiler.CompileError error) {
+            context.error(error.line, error.getMessage());
+        } catch(RuntimeError error) {
+            context.runTimeError(error);
+        }
+    }
 }
-
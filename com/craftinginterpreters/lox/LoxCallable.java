@@ -1,9 +1,27 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
+//callers pick the entry point matching how many arguments they have, so
+//the common arities never pack their arguments into anything. Every
+//callable must handle the array form; the fixed ones fall back to it.
 interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
     String toString();
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+//everything one execution reports to: where print and errors go, and
+//whether any errors happened. The Scanner, Parser, Resolver and
+//Interpreter of a script share one, so scripts with their own contexts
+//can run side by side on different threads without seeing each other's
+//output or errors.
+class LoxContext {
+    final PrintStream out;
+    final PrintStream err;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    LoxContext() {
+        this(System.out, System.err);
+    }
+
+    LoxContext(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void error(Token token, String message) {
+        if(token.type == TokenType.EOF) {
+            report(token.line, "at end", message);
+        } else {
+            report(token.line, " at " + token.lexeme + "'", message);
+        }
+    }
+
+    private void report(int line, String where, String message) {
+        err.println("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    void runTimeError(RuntimeError error) {
+        err.println(error.getMessage() + "\n [line" + error.line + "]");
+        hadRuntimeError = true;
+
+        LoxEvents.RuntimeFailure event = new LoxEvents.RuntimeFailure();
+        if(event.isEnabled()) {
+            event.message = error.getMessage();
+            event.line = error.line;
+            event.commit();
+        }
+    }
+}
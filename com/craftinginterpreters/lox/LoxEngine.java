@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//the entry point for running Lox from Java. compile() pays for scanning,
+//parsing, resolving and optimizing once; the CompiledScript it returns
+//can then be executed any number of times, from any number of threads.
+public final class LoxEngine {
+    private final PrintStream out;
+    private final int optimizationLevel;
+
+    public LoxEngine() {
+        this(System.out, 0);
+    }
+
+    //out is where print statements go; see Optimizer for the levels
+    public LoxEngine(PrintStream out, int optimizationLevel) {
+        if(optimizationLevel < 0 || optimizationLevel > 2) {
+            throw new IllegalArgumentException("Optimization level must be 0, 1 or 2.");
+        }
+        this.out = out;
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    //throws CompileError with every syntax and resolution error found
+    public CompiledScript compile(String source) {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        LoxContext context = new LoxContext(out,
+            new PrintStream(errors, true, StandardCharsets.UTF_8));
+
+        List<Stmt> statements = new Parser(Scanner.scanPacked(source, context), context).parse();
+        if(!context.hadError) new Resolver(context).resolve(statements);
+        if(context.hadError) {
+            throw new CompileError(errors.toString(StandardCharsets.UTF_8).trim());
+        }
+
+        if(optimizationLevel > 0) {
+            statements = new Optimizer(optimizationLevel).optimize(statements);
+        }
+        return new CompiledScript(this, statements, declaredGlobals(statements));
+    }
+
+    PrintStream out() {
+        return out;
+    }
+
+    //the names top-level code declares, in order, which execute() reports back
+    private static List<Symbol> declaredGlobals(List<Stmt> statements) {
+        List<Symbol> globals = new ArrayList<>();
+        for(Stmt statement : statements) {
+            Symbol name = null;
+            if(statement instanceof Stmt.Var) {
+                name = ((Stmt.Var)statement).name.symbol();
+            } else if(statement instanceof Stmt.Function) {
+                name = ((Stmt.Function)statement).name.symbol();
+            }
+            if(name != null && !globals.contains(name)) globals.add(name);
+        }
+        return globals;
+    }
+}
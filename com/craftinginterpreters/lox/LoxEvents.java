@@ -0,0 +1,97 @@
+package com.craftinginterpreters.lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+//Java Flight Recorder events for the interpreter's phases and hot spots.
+//With no recording running, commit() does nothing and the JIT drops the
+//event objects, so the only standing cost is the call sampling countdown.
+final class LoxEvents {
+    //one LoxFunction call in this many becomes a FunctionCall event; each
+    //Interpreter counts down on its own, see Interpreter.callCountdown
+    static final int CALL_SAMPLE_INTERVAL = 1024;
+
+    private LoxEvents() {}
+
+    @Name("jlox.Scan")
+    @Label("Scan")
+    @Category("Lox")
+    @Description("Scanning a REPL line into a packed token buffer")
+    @StackTrace(false)
+    static class Scan extends Event {
+        @Label("Source Characters")
+        int sourceChars;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("jlox.Parse")
+    @Label("Parse")
+    @Category("Lox")
+    @Description("Parsing a script or REPL line; for a file this includes scanning, which the parser drives")
+    @StackTrace(false)
+    static class Parse extends Event {
+        @Label("Source Size")
+        @Description("Bytes for a file, characters for a REPL line")
+        @DataAmount
+        long sourceSize;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Statements")
+        int statements;
+    }
+
+    @Name("jlox.Resolve")
+    @Label("Resolve")
+    @Category("Lox")
+    @StackTrace(false)
+    static class Resolve extends Event {
+        @Label("Nodes")
+        int nodes;
+    }
+
+    @Name("jlox.Interpret")
+    @Label("Interpret")
+    @Category("Lox")
+    @StackTrace(false)
+    static class Interpret extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Statements")
+        int statements;
+    }
+
+    @Name("jlox.FunctionCall")
+    @Label("Function Call")
+    @Category("Lox")
+    @Description("A sampled call of a Lox function, including its callees")
+    static class FunctionCall extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("Where the function is declared")
+        int line;
+    }
+
+    @Name("jlox.RuntimeError")
+    @Label("Runtime Error")
+    @Category("Lox")
+    @StackTrace(false)
+    static class RuntimeFailure extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+}
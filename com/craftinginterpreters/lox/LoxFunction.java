@@ -1,29 +1,151 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 class LoxFunction implements LoxCallable{
     
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     private final Environment closure;
     LoxFunction(Stmt.Function declaration, Environment closure) {
         this.declaration = declaration;
         this.closure = closure;
     }
 
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);//environment is the closure passed in
-        for(int i =0 ; i < declaration.params.size(); i++) {
-        
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    //the arguments are defined straight into the callee's frame
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        if(declaration.memo != null) return memoized(interpreter, arguments);
+        return invoke(interpreter, frame(arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if(declaration.memo != null) return memoized(interpreter, new Object[0]);
+        return invoke(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        if(declaration.memo != null) return memoized(interpreter, new Object[] {a});
+        Environment environment = newFrame();
+        environment.define(a);
+        return invoke(interpreter, environment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        if(declaration.memo != null) return memoized(interpreter, new Object[] {a, b});
+        Environment environment = newFrame();
+        environment.define(a);
+        environment.define(b);
+        return invoke(interpreter, environment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        if(declaration.memo != null) return memoized(interpreter, new Object[] {a, b, c});
+        Environment environment = newFrame();
+        environment.define(a);
+        environment.define(b);
+        environment.define(c);
+        return invoke(interpreter, environment);
+    }
+
+    //a pure function (see Purity) looks its arguments up before running
+    private Object memoized(Interpreter interpreter, Object[] arguments) {
+        Memo memo = declaration.memo;
+        List<Object> key = Arrays.asList(arguments);
+        Object value = memo.get(key);
+        if(value != Memo.MISSING) return value;
+
+        value = invoke(interpreter, frame(arguments));
+        memo.put(key, value);
+        return value;
+    }
+
+    private Environment frame(Object[] arguments) {
+        Environment environment = newFrame();
+        for(Object argument : arguments) {
+            environment.define(argument);
         }
+        return environment;
+    }
+
+    //what the body's free variables resolve against; compiled code that
+    //calls straight into a function's body passes it itself
+    Environment closure() {
+        return closure;
+    }
+
+    //an empty frame for a call; the arguments are defined into it in order
+    Environment newFrame() {
+        return new Environment(closure, declaration.frameSize);
+    }
 
-        try{
-        interpreter.executeBlock(declaration.body, environment);
-        } catch(Return returnValue) {
-            return returnValue.value;
+    //runs the body in a frame that already holds the arguments
+    Object invoke(Interpreter interpreter, Environment environment) {
+        if(--interpreter.callCountdown == 0) return sampled(interpreter, environment);
+        return run(interpreter, environment);
+    }
+
+    //one call in LoxEvents.CALL_SAMPLE_INTERVAL is timed for JFR
+    private Object sampled(Interpreter interpreter, Environment environment) {
+        interpreter.callCountdown = LoxEvents.CALL_SAMPLE_INTERVAL;
+        LoxEvents.FunctionCall event = new LoxEvents.FunctionCall();
+        if(!event.isEnabled()) return run(interpreter, environment);
+
+        event.begin();
+        try {
+            return run(interpreter, environment);
+        } finally {
+            event.function = declaration.name.lexeme;
+            event.line = declaration.name.line;
+            event.commit();
         }
-        return null;
+    }
+
+    //keeps the Sampler's shadow stack when --sample is on
+    private Object run(Interpreter interpreter, Environment environment) {
+        Sampler sampler = interpreter.sampler;
+        if(sampler == null) return loop(interpreter, environment, null);
+
+        sampler.push(declaration.name);
+        try {
+            return loop(interpreter, environment, sampler);
+        } finally {
+            sampler.pop();
+        }
+    }
+
+    //a tail call hands back another function and frame, which run here in turn
+    private Object loop(Interpreter interpreter, Environment environment, Sampler sampler) {
+        Stmt.Function function = declaration;
+        for(;;) {
+            Completion completion = execute(interpreter, function, environment);
+            if(completion == Completion.TAIL_CALL) {
+                function = ((LoxFunction)interpreter.tailCallee).declaration;
+                environment = interpreter.tailFrame;
+                interpreter.tailCallee = null;
+                interpreter.tailFrame = null;
+                if(sampler != null) sampler.replace(function.name);
+                continue;
+            }
+            if(completion == Completion.RETURN) {
+                Object value = interpreter.returnValue;
+                interpreter.returnValue = null;
+                return value;
+            }
+            return null;
+        }
+    }
+
+    //a hot function's body runs on tier 1, see Tiering
+    private static Completion execute(Interpreter interpreter, Stmt.Function function,
+                                      Environment environment) {
+        Tiering tiering = interpreter.tiering;
+        if(tiering == null) return interpreter.executeBody(function, environment);
+        return tiering.execute(function, environment);
     }
 
     @Override
@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//the results of one pure function, keyed by its argument values. Bounded:
+//once full, the least recently used entry makes room for the new one.
+final class Memo {
+    //get()'s answer when there is no entry, since nil is a valid result
+    static final Object MISSING = new Object();
+
+    final String name;
+    private final Map<List<Object>, Object> values;
+    private long hits = 0;
+    private long misses = 0;
+
+    Memo(String name, int capacity) {
+        this.name = name;
+        this.values = new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    //synchronized because spawned tasks may call the same pure function
+    synchronized Object get(List<Object> arguments) {
+        Object value = values.getOrDefault(arguments, MISSING);
+        if(value == MISSING) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    synchronized void put(List<Object> arguments, Object value) {
+        values.put(arguments, value);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long calls = hits + misses;
+        double rate = calls == 0 ? 0 : 100.0 * hits / calls;
+        return String.format("%s: %d hits, %d misses (%.1f%% hit rate)",
+            name, hits, misses, rate);
+    }
+}
@@ -0,0 +1,54 @@
+package com.craftinginterpreters.lox;
+
+//the spellings of one program's identifiers, so every use of a name shares
+//one String. A table lives as long as the scan that fills it; names only
+//go into the process-wide Symbol table once used as globals, see Token.
+final class Names {
+    private String[] table = new String[64];
+    private int count = 0;
+
+    String intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    //looks a range of the source up without cutting it out first
+    String intern(CharSequence text, int start, int end) {
+        int hash = 0;
+        for(int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+
+        int mask = table.length - 1;
+        int i = (hash ^ (hash >>> 16)) & mask;
+        for(String name = table[i]; name != null; name = table[i]) {
+            if(name.hashCode() == hash && matches(name, text, start, end)) return name;
+            i = (i + 1) & mask;
+        }
+
+        String name = text.subSequence(start, end).toString();
+        table[i] = name;
+        if(++count * 2 > table.length) grow();
+        return name;
+    }
+
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if(name.length() != end - start) return false;
+        for(int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) != text.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] names = table;
+        table = new String[names.length * 2];
+        int mask = table.length - 1;
+        for(String name : names) {
+            if(name == null) continue;
+            int hash = name.hashCode();
+            int i = (hash ^ (hash >>> 16)) & mask;
+            while(table[i] != null) i = (i + 1) & mask;
+            table[i] = name;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+//thrown by a native function, which doesn't know where it was called from;
+//the call site turns it into a RuntimeError at its own line
+class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,483 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+//rewrites a resolved tree before it runs. Level 1 folds constant
+//expressions, drops groupings and prunes branches and code that can't
+//run; level 2 also removes stores to locals that are never read.
+//Anything that could fail at runtime, like 1 / 0 or -"a", is left alone
+//so the error still happens, at the same line.
+//
+//Rebuilt nodes carry over what the Resolver filled in. Declarations are
+//never removed and blocks are never unwrapped, since both would shift
+//the slots and depths it handed out.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt>{
+    private final int level;
+    //filled in by Reads before the rewrite, only at level 2
+    private final Set<Token> unread = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Expr.Assign, Token> targets = new IdentityHashMap<>();
+
+    Optimizer(int level) {
+        this.level = level;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        if(level >= 2) new Reads().resolve(statements);
+        return optimizeAll(statements);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if(value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if(left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object folded = fold(expr.operator,
+                                 ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if(folded != CANT_FOLD) return new Expr.Literal(folded);
+        }
+
+        if(left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    private static final Object CANT_FOLD = new Object();
+
+    //same rules as Interpreter.visitBinaryExpr, minus every case that throws
+    private Object fold(Token operator, Object left, Object right) {
+        switch(operator.type) {
+            case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case PLUS:
+                if(left instanceof Double && right instanceof Double) {
+                    return (double) left + (double) right;
+                }
+                if(left instanceof String || right instanceof String) {
+                    return Interpreter.stringify(left) + Interpreter.stringify(right);
+                }
+                return CANT_FOLD;
+        }
+
+        if(!(left instanceof Double && right instanceof Double)) return CANT_FOLD;
+        double a = (double) left;
+        double b = (double) right;
+        switch(operator.type) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH:
+                if(b == 0) return CANT_FOLD;
+                return a / b;
+        }
+        return CANT_FOLD;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for(Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+
+        if(!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    //only there for the parser's sake
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if(left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+
+        if(left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if(right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            switch(expr.operator.type) {
+                case BANG: return new Expr.Literal(!Interpreter.isTruthy(value));
+                case MINUS:
+                    if(value instanceof Double) return new Expr.Literal(-(double) value);
+                    break;
+            }
+        }
+
+        if(right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = optimize(expr.condition);
+        Expr thenBranch = optimize(expr.thenBranch);
+        Expr elseBranch = optimize(expr.elseBranch);
+        if(condition instanceof Expr.Literal) {
+            return Interpreter.isTruthy(((Expr.Literal)condition).value) ? thenBranch : elseBranch;
+        }
+
+        if(condition == expr.condition && thenBranch == expr.thenBranch &&
+           elseBranch == expr.elseBranch) {
+            return expr;
+        }
+        return new Expr.Ternary(condition, expr.operator1, thenBranch, expr.operator2, elseBranch);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = new Stmt.Block(optimizeAll(stmt.statements));
+        block.frameSize = stmt.frameSize;
+        return block;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        if(stmt.expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            if(isDeadStore(assign)) {
+                //the value may still have side effects to keep
+                Expr value = optimize(assign.value);
+                return isPure(value) ? null : new Stmt.Expression(value);
+            }
+        }
+
+        Expr expression = optimize(stmt.expression);
+        if(expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params,
+                                                   optimizeAll(stmt.body));
+        function.frameSize = stmt.frameSize;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if(condition instanceof Expr.Literal) {
+            if(Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if(expression == stmt.expression) return stmt;
+        return new Stmt.Print(stmt.keyword, expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if(value == stmt.value) return stmt;
+        Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+        result.tailCall = stmt.tailCall && value instanceof Expr.Call;
+        return result;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        //the declaration has to stay to keep the slot, but nothing reads the value
+        if(unread.contains(stmt.name) && isPure(initializer)) initializer = null;
+        if(initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if(condition instanceof Expr.Literal &&
+           !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+        return new Stmt.While(condition, orEmpty(optimize(stmt.body)));
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        Expr condition = stmt.condition == null ? null : optimize(stmt.condition);
+        Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+        //only the initializer runs; it may still declare the loop's variable
+        if(condition instanceof Expr.Literal &&
+           !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            increment = null;
+        }
+
+        Stmt.For loop = new Stmt.For(initializer, condition, increment,
+                                     orEmpty(optimize(stmt.body)));
+        loop.frameSize = stmt.frameSize;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    //null when the statement does nothing at all
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for(Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if(result != null) optimized.add(result);
+            //nothing after these in the same list can run
+            if(statement instanceof Stmt.Return || statement instanceof Stmt.Break) break;
+        }
+        return optimized;
+    }
+
+    //a branch or loop body still needs a statement, even an empty one
+    private Stmt orEmpty(Stmt stmt) {
+        if(stmt != null) return stmt;
+        return new Stmt.Block(new ArrayList<>());
+    }
+
+    private boolean isDeadStore(Expr.Assign assign) {
+        Token target = targets.get(assign);
+        return target != null && unread.contains(target);
+    }
+
+    //can be evaluated or skipped without anyone noticing; a global read
+    //isn't, since it fails when the global is undefined
+    private boolean isPure(Expr expr) {
+        if(expr instanceof Expr.Literal) return true;
+        if(expr instanceof Expr.Variable) return ((Expr.Variable)expr).depth != -1;
+        return false;
+    }
+
+    //walks the tree the way the Resolver did, so each local read and
+    //assignment can be matched with the declaration it resolved to
+    private class Reads implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        //per scope, the declaring token of each slot
+        private final Stack<List<Token>> scopes = new Stack<>();
+        private final Set<Token> read = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        void resolve(List<Stmt> statements) {
+            for(Stmt statement : statements) statement.accept(this);
+        }
+
+        private void resolve(Expr expr) {
+            expr.accept(this);
+        }
+
+        private Token declaration(int depth, int slot) {
+            return scopes.get(scopes.size() - 1 - depth).get(slot);
+        }
+
+        private void declare(Token name) {
+            if(!scopes.isEmpty()) scopes.peek().add(name);
+        }
+
+        //anything declared in the scope and never read is reported unread
+        private void endScope() {
+            for(Token name : scopes.pop()) {
+                if(!read.contains(name)) unread.add(name);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            resolve(expr.value);
+            if(expr.depth != -1) targets.put(expr, declaration(expr.depth, expr.slot));
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            resolve(expr.left);
+            resolve(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            resolve(expr.callee);
+            for(Expr argument : expr.arguments) resolve(argument);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            resolve(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            resolve(expr.left);
+            resolve(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            resolve(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            resolve(expr.condition);
+            resolve(expr.thenBranch);
+            resolve(expr.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            if(expr.depth != -1) read.add(declaration(expr.depth, expr.slot));
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            //the Resolver only gave a scope to blocks that declare something
+            if(stmt.frameSize == 0) {
+                resolve(stmt.statements);
+                return null;
+            }
+            scopes.push(new ArrayList<>());
+            resolve(stmt.statements);
+            endScope();
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            resolve(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name);
+            scopes.push(new ArrayList<>(stmt.params));
+            resolve(stmt.body);
+            endScope();
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            resolve(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if(stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            resolve(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if(stmt.value != null) resolve(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if(stmt.initializer != null) resolve(stmt.initializer);
+            declare(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            resolve(stmt.condition);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            if(stmt.frameSize != 0) scopes.push(new ArrayList<>());
+            if(stmt.initializer != null) stmt.initializer.accept(this);
+            if(stmt.condition != null) resolve(stmt.condition);
+            if(stmt.increment != null) resolve(stmt.increment);
+            stmt.body.accept(this);
+            if(stmt.frameSize != 0) endScope();
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            return null;
+        }
+    }
+}
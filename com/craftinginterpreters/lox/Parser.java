@@ -1,17 +1,32 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 class Parser {
     private static class ParseError extends RuntimeException{}
-    private final List<Token> tokens;
-    private int current =0;
+    private final TokenSource tokens;
+    private final LoxContext context;
+    //how many tokens parse() has gone through, for LoxEvents
+    private int consumed = 0;
     
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, LoxContext context) {
+        this(new TokenStream(tokens.iterator()::next), context);
+    }
+
+    //pulls tokens from the Scanner as it goes instead of waiting for a full list
+    Parser(Scanner scanner, LoxContext context) {
+        this(new TokenStream(scanner::nextToken), context);
+    }
+
+    Parser(TokenBuffer tokens, LoxContext context) {
+        this(tokens.cursor(), context);
+    }
+
+    Parser(TokenSource tokens, LoxContext context) {
         this.tokens = tokens;
+        this.context = context;
     }
 
     List<Stmt> parse(){
@@ -99,18 +114,9 @@ class Parser {
 
         Stmt body = statement();
 
-        if(increment != null) {
-            body = new Stmt.Block(Arrays.asList(body,
-                                                new Stmt.Expression(increment)));                      
-        }
-
-        if(condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if(initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-        return body;
+        //kept as its own node rather than desugared into a while inside
+        //blocks, so the loop doesn't pay for a scope on every iteration
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt breakStatement() {
@@ -133,10 +139,11 @@ class Parser {
     }
 
     private Stmt printStatement(){
+        Token keyword = previous();
         Expr value = expression();
         consume(SEMICOLON, "Expect ';' after value.");
 
-        return new Stmt.Print(value);
+        return new Stmt.Print(keyword, value);
     }
 
     private Stmt returnStatement() {
@@ -152,7 +159,8 @@ class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if(match(EQUAL)) {
@@ -180,7 +188,8 @@ class Parser {
     }
 
     private Stmt.Function function(String kind){
-        Token name = consume(IDENTIFIER, "Expect " + kind + "name.");
+        consume(IDENTIFIER, "Expect " + kind + "name.");
+        Token name = previous();
         consume(LEFT_PAREN, "Expect '(' after " + kind + "name.");
         List<Token> parameters = new ArrayList<>();
         if(!check(RIGHT_PAREN)) {
@@ -189,9 +198,8 @@ class Parser {
                     error(peek(), "Can't have more than 255 parameters.");
                 }
 
-                parameters.add(
-                    consume(IDENTIFIER, "Expect parameter name.")
-                );
+                consume(IDENTIFIER, "Expect parameter name.");
+                parameters.add(previous());
             } while(match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -312,7 +320,8 @@ class Parser {
             } while(match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments");
+        consume(RIGHT_PAREN, "Expect ')' after arguments");
+        Token paren = previous();
 
         return new Expr.Call(callee, paren , arguments);
     }
@@ -364,36 +373,47 @@ class Parser {
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
-        if(check(type)) return advance();
+    //doesn't hand back the token: most callers only need it to be there, and
+    //a packed TokenSource would have to build it; use previous() if you need it
+    private void consume(TokenType type, String message) {
+        if(check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
 
     private boolean check(TokenType type) {
         if(isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.peekType() == type;
+    }
+
+    private void advance() {
+        //the source stays on EOF, which error recovery still advances over
+        if(isAtEnd()) return;
+        tokens.advance();
+        consumed++;
     }
 
-    private Token advance() {
-        if(!isAtEnd()) current++;
-        return previous();
+    int tokenCount() {
+        return consumed;
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.peekType() == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.peek();
     }
 
     private Token previous() {
-        return tokens.get(current-1);
+        return tokens.previous();
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        context.error(token, message);
         return new ParseError();
     }
 
@@ -403,7 +423,7 @@ class Parser {
         while(!isAtEnd()) {
             if(previous().type == SEMICOLON) return;
 
-            switch(peek().type) {
+            switch(tokens.peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -0,0 +1,261 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//the tree-walker with --profile: times every function activation and
+//counts statement executions per source line. Only this subclass does
+//any of it, so a plain Interpreter pays nothing.
+//
+//A spawned task runs on a Profiler of its own, which hands its counts to
+//the one --profile made once the task ends; they are added in when the
+//report is made. A task still running then is left out.
+class Profiler extends Interpreter {
+    private static final int REPORTED_LINES = 20;
+
+    private static class FunctionStats {
+        final Stmt.Function declaration;
+        long calls = 0;
+        long totalNanos = 0;
+        long selfNanos = 0;
+        //activations on the stack; only the outermost adds to totalNanos,
+        //so recursion isn't counted twice
+        int active = 0;
+
+        FunctionStats(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+    }
+
+    //Stmt doesn't override equals, so these are keyed by identity
+    private final Map<Stmt.Function, FunctionStats> functions = new LinkedHashMap<>();
+    private final Map<Stmt, Integer> lines = new IdentityHashMap<>();
+    private long[] lineCounts = new long[64];
+    //time spent in callees, per activation on the stack
+    private long[] calleeNanos = new long[64];
+    private int depth = 0;
+    //the Profiler --profile made, and the tasks that have ended under it
+    private final Profiler root;
+    private final Queue<Profiler> endedTasks = new ConcurrentLinkedQueue<>();
+
+    Profiler(LoxContext context) {
+        super(context);
+        this.root = this;
+    }
+
+    private Profiler(Profiler parent) {
+        super(parent.context, parent.globals);
+        this.root = parent.root;
+    }
+
+    @Override
+    Interpreter fork() {
+        return new Profiler(this);
+    }
+
+    @Override
+    void taskEnded() {
+        root.endedTasks.add(this);
+    }
+
+    private void add(Profiler task) {
+        for(FunctionStats theirs : task.functions.values()) {
+            FunctionStats stats = functions.computeIfAbsent(theirs.declaration, FunctionStats::new);
+            stats.calls += theirs.calls;
+            stats.totalNanos += theirs.totalNanos;
+            stats.selfNanos += theirs.selfNanos;
+        }
+        if(task.lineCounts.length > lineCounts.length) {
+            lineCounts = Arrays.copyOf(lineCounts, task.lineCounts.length);
+        }
+        for(int line = 0; line < task.lineCounts.length; line++) {
+            lineCounts[line] += task.lineCounts[line];
+        }
+    }
+
+    @Override
+    Completion execute(Stmt stmt) {
+        //a block's own line is its first statement's, which counts itself
+        if(!(stmt instanceof Stmt.Block)) {
+            int line = lines.computeIfAbsent(stmt, Profiler::firstLine);
+            if(line >= lineCounts.length) {
+                lineCounts = Arrays.copyOf(lineCounts, Math.max(line + 1, lineCounts.length * 2));
+            }
+            lineCounts[line]++;
+        }
+        return super.execute(stmt);
+    }
+
+    @Override
+    Completion executeBody(Stmt.Function function, Environment environment) {
+        FunctionStats stats = functions.computeIfAbsent(function, FunctionStats::new);
+        stats.calls++;
+        stats.active++;
+        if(depth == calleeNanos.length) calleeNanos = Arrays.copyOf(calleeNanos, depth * 2);
+        calleeNanos[depth++] = 0;
+
+        long start = System.nanoTime();
+        try {
+            return super.executeBody(function, environment);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            stats.selfNanos += elapsed - calleeNanos[--depth];
+            if(--stats.active == 0) stats.totalNanos += elapsed;
+            if(depth > 0) calleeNanos[depth - 1] += elapsed;
+        }
+    }
+
+    void report(PrintStream out) {
+        for(Profiler task = endedTasks.poll(); task != null; task = endedTasks.poll()) {
+            add(task);
+        }
+
+        List<FunctionStats> byTime = new ArrayList<>(functions.values());
+        byTime.sort((a, b) -> Long.compare(b.selfNanos, a.selfNanos));
+        out.println("[profile] function                 calls    total ms     self ms");
+        for(FunctionStats stats : byTime) {
+            String name = stats.declaration.name.lexeme + ":" + stats.declaration.name.line;
+            out.println(String.format("[profile] %-20s %10d %11.2f %11.2f", name,
+                stats.calls, stats.totalNanos / 1e6, stats.selfNanos / 1e6));
+        }
+
+        List<Integer> byCount = new ArrayList<>();
+        for(int line = 1; line < lineCounts.length; line++) {
+            if(lineCounts[line] > 0) byCount.add(line);
+        }
+        byCount.sort((a, b) -> Long.compare(lineCounts[b], lineCounts[a]));
+        out.println("[profile] line        executions");
+        for(int line : byCount.subList(0, Math.min(REPORTED_LINES, byCount.size()))) {
+            out.println(String.format("[profile] %-8d %13d", line, lineCounts[line]));
+        }
+    }
+
+    //the line of the first token under a statement; 0 if it has none,
+    //like "1;"
+    private static int firstLine(Stmt stmt) {
+        return stmt.accept(FIRST_LINE);
+    }
+
+    private static final FirstLine FIRST_LINE = new FirstLine();
+
+    private static class FirstLine implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private int line(Expr expr) {
+            return expr == null ? 0 : expr.accept(this);
+        }
+
+        private int line(Stmt stmt) {
+            return stmt == null ? 0 : stmt.accept(this);
+        }
+
+        private static int either(int first, int second) {
+            return first != 0 ? first : second;
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            return expr.name.line;
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            return either(line(expr.left), expr.operator.line);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            return either(line(expr.callee), expr.paren.line);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return line(expr.expression);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return 0;
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            return either(line(expr.left), expr.operator.line);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return expr.operator.line;
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            return either(line(expr.condition), expr.operator1.line);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return expr.name.line;
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            for(Stmt statement : stmt.statements) {
+                int line = line(statement);
+                if(line != 0) return line;
+            }
+            return 0;
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return line(stmt.expression);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            return stmt.name.line;
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            return either(line(stmt.condition), line(stmt.thenBranch));
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            return stmt.keyword.line;
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            return stmt.name.line;
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            return either(line(stmt.condition), line(stmt.body));
+        }
+
+        @Override
+        public Integer visitForStmt(Stmt.For stmt) {
+            int line = either(line(stmt.initializer), line(stmt.condition));
+            return either(either(line, line(stmt.increment)), line(stmt.body));
+        }
+
+        @Override
+        public Integer visitBreakStmt(Stmt.Break stmt) {
+            return stmt.keyword.line;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+//finds the functions whose result depends only on their arguments, and
+//gives each one a Memo. It runs on a resolved tree and reads the depths
+//the Resolver left behind to tell a function's own locals from captured
+//variables and globals.
+//
+//A function is pure if it doesn't print, doesn't assign anything but its
+//own locals, doesn't read captured variables, doesn't declare functions
+//(each call would return a new closure), and only calls top-level
+//functions that are themselves pure. Those are the only globals it may
+//read, and only if nothing ever reassigns or redeclares them. Natives
+//such as clock are not Lox functions, so calling one is impure.
+class Purity implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final int capacity;
+
+    //what the walk learns about each function
+    private static class Info {
+        final Stmt.Function declaration;
+        //frames of its own that are open at the current point of the walk
+        int frames = 1;
+        boolean impure = false;
+        //the globals it reads, which must all turn out to be pure functions
+        final Set<Symbol> globals = new HashSet<>();
+
+        Info(Stmt.Function declaration) {
+            this.declaration = declaration;
+        }
+    }
+
+    //in declaration order, so the report is stable
+    private final Map<Stmt.Function, Info> functions = new LinkedHashMap<>();
+    private final Stack<Info> enclosing = new Stack<>();
+    private Info current = null;
+    //frames open in top-level code; a function declared while this is 0 is a global
+    private int topFrames = 0;
+
+    private final Map<Symbol, Stmt.Function> globalFunctions = new HashMap<>();
+    //globals that are assigned, declared with var, or declared twice
+    private final Set<Symbol> unstable = new HashSet<>();
+
+    Purity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    //returns the Memo of every function found pure, for reporting
+    List<Memo> analyze(List<Stmt> statements) {
+        resolve(statements);
+
+        //impurity spreads to everything that calls an impure function,
+        //so keep going until a pass changes nothing
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Info info : functions.values()) {
+                if(info.impure) continue;
+                for(Symbol global : info.globals) {
+                    Stmt.Function callee = globalFunctions.get(global);
+                    if(callee == null || unstable.contains(global) ||
+                       functions.get(callee).impure) {
+                        info.impure = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<Memo> memos = new ArrayList<>();
+        for(Info info : functions.values()) {
+            if(info.impure) continue;
+            info.declaration.memo = new Memo(info.declaration.name.lexeme, capacity);
+            memos.add(info.declaration.memo);
+        }
+        return memos;
+    }
+
+    private void resolve(List<Stmt> statements) {
+        for(Stmt statement : statements) statement.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void impure() {
+        if(current != null) current.impure = true;
+    }
+
+    //frameSize 0 means the Resolver gave the block or loop no frame
+    private void beginFrame(int frameSize) {
+        if(frameSize == 0) return;
+        if(current != null) {
+            current.frames++;
+        } else {
+            topFrames++;
+        }
+    }
+
+    private void endFrame(int frameSize) {
+        if(frameSize == 0) return;
+        if(current != null) {
+            current.frames--;
+        } else {
+            topFrames--;
+        }
+    }
+
+    //true if depth points into the current function's own frames
+    private boolean isOwn(int depth) {
+        return depth != -1 && depth < current.frames;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        if(expr.depth == -1) unstable.add(expr.name.symbol());
+        if(current != null && !isOwn(expr.depth)) impure();
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        //a callee we can't name statically could be anything
+        if(!(expr.callee instanceof Expr.Variable) ||
+           ((Expr.Variable)expr.callee).depth != -1) {
+            impure();
+        }
+        resolve(expr.callee);
+        for(Expr argument : expr.arguments) resolve(argument);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        resolve(expr.condition);
+        resolve(expr.thenBranch);
+        resolve(expr.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if(current == null) return null;
+        if(expr.depth == -1) {
+            current.globals.add(expr.name.symbol());
+        } else if(!isOwn(expr.depth)) {
+            impure();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginFrame(stmt.frameSize);
+        resolve(stmt.statements);
+        endFrame(stmt.frameSize);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if(current == null && topFrames == 0) {
+            if(globalFunctions.containsKey(stmt.name.symbol())) {
+                unstable.add(stmt.name.symbol());
+            }
+            globalFunctions.put(stmt.name.symbol(), stmt);
+        }
+        impure();
+
+        enclosing.push(current);
+        current = new Info(stmt);
+        functions.put(stmt, current);
+        resolve(stmt.body);
+        current = enclosing.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if(stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value != null) resolve(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(current == null && topFrames == 0) unstable.add(stmt.name.symbol());
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginFrame(stmt.frameSize);
+        if(stmt.initializer != null) stmt.initializer.accept(this);
+        if(stmt.condition != null) resolve(stmt.condition);
+        if(stmt.increment != null) resolve(stmt.increment);
+        stmt.body.accept(this);
+        endFrame(stmt.frameSize);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+}
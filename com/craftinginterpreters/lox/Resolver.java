@@ -7,14 +7,15 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    //keyed by lexeme; the scanner gives every use of a name the same
+    //String, so its hash is computed once
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private LoopType currentLoop = LoopType.NONE;
-
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    private int localDepth;
+    //every node resolved, for LoxEvents
+    private int nodes = 0;
+    private final LoxContext context;
 
     private enum FunctionType {
         NONE,
@@ -25,14 +26,45 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         NONE, 
         LOOP
     }
+
+    Resolver(LoxContext context) {
+        this.context = context;
+    }
+
+    //a local's frame slot, plus whether its initializer has finished
+    private static class Local {
+        final int slot;
+        boolean defined = false;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        //a block that declares nothing gets no scope, and so no frame at
+        //runtime; frameSize 0 tells the engines to run it in the enclosing one
+        if(!declaresLocals(stmt.statements)) {
+            resolve(stmt.statements);
+            stmt.frameSize = 0;
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
+        stmt.frameSize = scopes.peek().size();
         endScope();
         return null;
     }
 
+    private static boolean declaresLocals(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            if(statement instanceof Stmt.Var || statement instanceof Stmt.Function) return true;
+        }
+        return false;
+    }
+
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
         resolve(stmt.expression);
@@ -62,18 +94,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitReturnStmt(Stmt.Return stmt){
         if(currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            context.error(stmt.keyword, "Can't return from top-level code.");
         }
         if(stmt.value != null) {
             resolve(stmt.value);
         }
+        //nothing is left to do in this call once the callee returns, so
+        //the engines can run the callee in its place
+        stmt.tailCall = currentFunction != FunctionType.NONE &&
+                        stmt.value instanceof Expr.Call;
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
         if(currentLoop == LoopType.NONE) {
-            Lox.error(stmt.keyword, "Can't use break outside of a loop");
+            context.error(stmt.keyword, "Can't use break outside of a loop");
         }
         return null;
     }
@@ -88,6 +124,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         return null;
     }
     @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        //one scope for the whole loop, and only if it declares its variable
+        boolean scoped = stmt.initializer instanceof Stmt.Var;
+        if(scoped) beginScope();
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        if(stmt.condition != null) resolve(stmt.condition);
+        if(stmt.increment != null) resolve(stmt.increment);
+
+        LoopType enclosingLoop = currentLoop;
+        currentLoop = LoopType.LOOP;
+        resolve(stmt.body);
+        currentLoop = enclosingLoop;
+
+        stmt.frameSize = scoped ? scopes.peek().size() : 0;
+        if(scoped) endScope();
+        return null;
+    }
+    @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         declare(stmt.name);
         if(stmt.initializer != null) {
@@ -101,7 +155,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);;
+        Local local = resolveLocal(expr.name);
+        if(local != null) {
+            expr.depth = localDepth;
+            expr.slot = local.slot;
+        }
         return null;
     }
 
@@ -154,38 +212,48 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     }
     public Void visitVariableExpr(Expr.Variable expr) {
         if(!scopes.isEmpty() &&
-        scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+        scopes.peek().containsKey(expr.name.lexeme) &&
+        !scopes.peek().get(expr.name.lexeme).defined) {
+            context.error(expr.name,
             "Can't read local variable in its own initializer");
         }
 
-        resolveLocal(expr, expr.name);
+        Local local = resolveLocal(expr.name);
+        if(local != null) {
+            expr.depth = localDepth;
+            expr.slot = local.slot;
+        }
         return null;
     }
 
     private void declare(Token name) {
         if(scopes.isEmpty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek();
         if(scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            context.error(name,
             "Already variable with this name in this scope");
+            return;
         }
-        scope.put(name.lexeme, false);
+        scope.put(name.lexeme, new Local(scope.size()));
     }
 
     public void define(Token name) {
         if(scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    //finds the innermost local with this name and leaves how many scopes
+    //out it was in localDepth; null means it is a global
+    private Local resolveLocal(Token name) {
         for(int i = scopes.size() -1 ; i>= 0; i--) {
-            if(scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Local local = scopes.get(i).get(name.lexeme);
+            if(local != null) {
+                localDepth = scopes.size() - 1 - i;
+                return local;
             }
         }
+        return null;
     }
     void resolve(List<Stmt> statements) {
         for(Stmt statement: statements) {
@@ -194,13 +262,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     }
 
     private void resolve(Stmt stmt) {
+        nodes++;
         stmt.accept(this);
     }
 
     private void resolve(Expr expr) {
+        nodes++;
         expr.accept(this);
     }
 
+    int nodeCount() {
+        return nodes;
+    }
+
     // private Void resolveLoop(Stmt.While loop, LoopType type) {
 
     // }
@@ -208,20 +282,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     private Void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        //a break can't reach a loop outside the function it is written in
+        LoopType enclosingLoop = currentLoop;
+        currentLoop = LoopType.NONE;
         beginScope();
         for(Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
+        function.frameSize = scopes.peek().size();
         endScope();
         currentFunction = enclosingFunction;
+        currentLoop = enclosingLoop;
 
         return null;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
     private void endScope(){
@@ -1,11 +1,26 @@
 package com.craftinginterpreters.lox;
 
-class RuntimeError extends RuntimeException{
+public class RuntimeError extends RuntimeException{
     final Token token;
-    
+    final int line;
+
     RuntimeError(Token token, String message) {
         super(message);
 
         this.token = token;
+        this.line = token.line;
+    }
+
+    //for engines that only keep line numbers around, like the bytecode VM
+    public RuntimeError(int line, String message) {
+        super(message);
+
+        this.token = null;
+        this.line = line;
+    }
+
+    //the Lox source line the error happened on
+    public int getLine() {
+        return line;
     }
 }
@@ -0,0 +1,110 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+//the low-overhead alternative to --profile. LoxFunction keeps a shadow
+//stack of the name tokens of the functions it is running, and a daemon
+//thread looks at it every interval and counts what it sees. The counts are
+//written in the collapsed format flame graph tools read: one line per
+//distinct stack, frames from the outermost in separated by ';', then the
+//number of samples.
+class Sampler {
+    static final long DEFAULT_INTERVAL_MICROS = 1000;
+    private static final String ROOT = "<script>";
+
+    private final long intervalNanos;
+    private final Path output;
+
+    //written only by the interpreter thread. The sampler may catch a frame
+    //just as it is overwritten, which at worst misattributes one sample.
+    private volatile Token[] frames = new Token[64];
+    //set with lazySet, so pushing a frame costs a plain store
+    private final AtomicInteger depth = new AtomicInteger();
+
+    //only touched by the sampler thread until stop() joins it
+    private final Map<String, Long> samples = new HashMap<>();
+    private final StringBuilder stack = new StringBuilder();
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    Sampler(long intervalMicros, Path output) {
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+        this.output = output;
+    }
+
+    void push(Token name) {
+        int top = depth.get();
+        Token[] frames = this.frames;
+        if(top == frames.length) {
+            Token[] grown = new Token[top * 2];
+            System.arraycopy(frames, 0, grown, 0, top);
+            this.frames = frames = grown;
+        }
+        frames[top] = name;
+        depth.lazySet(top + 1);
+    }
+
+    //a tail call reuses its caller's slot, as it does the Java frame
+    void replace(Token name) {
+        frames[depth.get() - 1] = name;
+    }
+
+    void pop() {
+        depth.lazySet(depth.get() - 1);
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::sample, "lox-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //stops sampling and writes what it collected to the output file
+    void stop() throws IOException {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch(InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+
+        try(PrintWriter out = new PrintWriter(
+                Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+            for(Map.Entry<String, Long> entry : samples.entrySet()) {
+                out.println(entry.getKey() + " " + entry.getValue());
+            }
+        }
+    }
+
+    private void sample() {
+        while(running) {
+            LockSupport.parkNanos(intervalNanos);
+            if(running) samples.merge(capture(), 1L, Long::sum);
+        }
+    }
+
+    private String capture() {
+        Token[] frames = this.frames;
+        int top = Math.min(depth.get(), frames.length);
+        stack.setLength(0);
+        stack.append(ROOT);
+        for(int i = 0; i < top; i++) {
+            Token name = frames[i];
+            //a slot the interpreter hasn't filled yet after growing
+            if(name == null) break;
+            stack.append(';').append(name.lexeme).append(':').append(name.line);
+        }
+        return stack.toString();
+    }
+}
@@ -1,53 +1,68 @@
 package com.craftinginterpreters.lox;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 class Scanner{
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final SourceReader source;
+    private final LoxContext context;
+    //the token the last scanToken() produced, if any
+    private Token next = null;
+    //when set, tokens are appended here instead of being built as objects
+    private TokenBuffer packed = null;
+    //every use of an identifier shares its first one's lexeme
+    private final Names names = new Names();
 
     private int start= 0;
     private int current =0;
     private int line = 1;
-    Scanner(String source) {
-        this.source = source;
+    Scanner(String source, LoxContext context) {
+        this(SourceReader.of(source), context);
     }
 
-    private static final Map<String, TokenType> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false",FALSE);
-        keywords.put("for",FOR);
-        keywords.put("fun",FUN);
-        keywords.put("if",IF);
-        keywords.put("nil",NIL);
-        keywords.put("or",OR);
-        keywords.put("print",PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",SUPER);
-        keywords.put("this",THIS);
-        keywords.put("true",TRUE);
-        keywords.put("var",VAR);
-        keywords.put("while",WHILE);
-        keywords.put("break", BREAK);
+    Scanner(SourceReader source, LoxContext context) {
+        this.source = source;
+        this.context = context;
     }
+
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while(token.type != EOF);
+        return tokens;
+    }
+
+    //scans the whole source into one packed buffer
+    static TokenBuffer scanPacked(CharSequence source, LoxContext context) {
+        Scanner scanner = new Scanner(SourceReader.of(source), context);
+        TokenBuffer tokens = new TokenBuffer(source);
+        scanner.packed = tokens;
+        while(!scanner.isAtEnd()) {
+            scanner.start = scanner.current;
+            scanner.scanToken();
+        }
+        tokens.add(EOF, scanner.current, 0, scanner.line);
+        return tokens;
+    }
+
+    //scans just far enough to produce one token; keeps returning EOF once the source runs out
+    Token nextToken() {
+        while(next == null) {
+            if(isAtEnd()) return new Token(EOF, "", null, line);
             start = current;
+            source.release(start);
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        Token token = next;
+        next = null;
+        return token;
     }
     private boolean isAtEnd(){
-        return current >= source.length();
+        return !source.has(current);
     }
     private void scanToken() {
         char c = advance();
@@ -123,19 +138,62 @@ class Scanner{
                     identifier();
                 }
                 else{
-                Lox.error(line, "Unexpected character. ");
+                context.error(line, "Unexpected character. ");
                 }
                 break;
         }
     }
     private void identifier(){
         while(isAlphanumeric(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(identifierType());
 
     }
+
+    //keywords are told apart by their first letters, the way clox does
+    //it, so an identifier never has to be cut out and hashed just to
+    //find out it isn't one
+    private TokenType identifierType() {
+        switch(source.charAt(start)) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'b': return checkKeyword(1, "reak", BREAK);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if(current - start > 1) {
+                    switch(source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if(current - start > 1) {
+                    switch(source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if(current - start != offset + rest.length()) return IDENTIFIER;
+        for(int i = 0; i < rest.length(); i++) {
+            if(source.charAt(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
     private void number() {
         while(isDigit(peek())) advance();
 
@@ -146,11 +204,11 @@ class Scanner{
             while(isDigit(peek())) advance();
         }
         //
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private char peekNext() {
-        if(current +1 >= source.length()) return '\0';
+        if(!source.has(current +1)) return '\0';
         return source.charAt(current +1);
     }
     private boolean isAlpha(char c) {
@@ -168,15 +226,13 @@ class Scanner{
         }
 
         if(isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            context.error(line, "Unterminated string.");
             return;
         }
         
         advance();
     
-        //trim quotes around
-        String value = source.substring(start+1, current -1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
     private boolean match(char expected) {
         if( isAtEnd()) return false;
@@ -197,12 +253,23 @@ class Scanner{
         return source.charAt(current -1);// takes in the one thats behind it so everything gets recorded
     }
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-    
-    private void addToken(TokenType type, Object literal) {
+        if(packed != null) {
+            packed.add(type, start, current - start, line);
+            return;
+        }
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        if(type == IDENTIFIER) text = names.intern(text);
+        next = new Token(type, text, literal(type, text), line);
+    }
+
+    //literals are derived from the lexeme, so a packed buffer can recreate them later
+    static Object literal(TokenType type, String lexeme) {
+        switch(type) {
+            case NUMBER: return Double.parseDouble(lexeme);
+            //trim quotes around
+            case STRING: return lexeme.substring(1, lexeme.length() - 1);
+            default: return null;
+        }
     }
 
     
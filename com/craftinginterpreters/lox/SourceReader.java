@@ -0,0 +1,189 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+//character input for the Scanner. Positions are absolute offsets into the
+//whole source, but a streaming reader only keeps what comes after the last
+//release() point, so memory is bounded by one chunk plus the longest token
+//instead of by the size of the file.
+abstract class SourceReader {
+    //true if there is a character at this position
+    abstract boolean has(int position);
+
+    abstract char charAt(int position);
+
+    abstract String substring(int start, int end);
+
+    //nothing before this position will be asked for again
+    void release(int position) {}
+
+    static SourceReader of(CharSequence source) {
+        return new TextSource(source);
+    }
+
+    static SourceReader of(Reader reader) {
+        return new StreamSource(reader);
+    }
+
+    static SourceReader of(ByteBuffer bytes, Charset charset) {
+        return of(new DecodingReader(bytes.duplicate(), charset));
+    }
+
+    static SourceReader mapped(Path path, Charset charset) throws IOException {
+        ByteBuffer bytes = map(path);
+        //past what one mapping can hold, read through the channel instead
+        if(bytes == null) return of(Channels.newReader(FileChannel.open(path), charset));
+        return of(bytes, charset);
+    }
+
+    //a mapped file decoded in one go, for scanning it whole; bad input is
+    //replaced the same way as by the streaming readers
+    static CharBuffer decode(ByteBuffer bytes, Charset charset) {
+        return charset.decode(bytes.duplicate());
+    }
+
+    //the whole file as one read-only mapping, or null if it is over the
+    //2GB a single mapping is limited to
+    static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) return null;
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static class TextSource extends SourceReader {
+        private final CharSequence source;
+
+        TextSource(CharSequence source) {
+            this.source = source;
+        }
+
+        @Override
+        boolean has(int position) {
+            return position < source.length();
+        }
+
+        @Override
+        char charAt(int position) {
+            return source.charAt(position);
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return source.subSequence(start, end).toString();
+        }
+    }
+
+    private static class StreamSource extends SourceReader {
+        private static final int CHUNK_SIZE = 8192;
+
+        private final Reader reader;
+        private char[] buffer = new char[CHUNK_SIZE];
+        //absolute position of buffer[0]
+        private int offset = 0;
+        private int length = 0;
+        private int released = 0;
+        private boolean eof = false;
+
+        StreamSource(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        boolean has(int position) {
+            while(position >= offset + length) {
+                if(eof || !fill()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        char charAt(int position) {
+            has(position);
+            return buffer[position - offset];
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return new String(buffer, start - offset, end - start);
+        }
+
+        @Override
+        void release(int position) {
+            released = position;
+        }
+
+        private boolean fill() {
+            //slide the live part to the front, and only grow when a single
+            //token is bigger than what we already have
+            int keep = offset + length - released;
+            if(released > offset) {
+                System.arraycopy(buffer, released - offset, buffer, 0, keep);
+                offset = released;
+                length = keep;
+            }
+            if(buffer.length - length < CHUNK_SIZE / 2) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            try {
+                int read = reader.read(buffer, length, buffer.length - length);
+                if(read == -1) {
+                    eof = true;
+                    reader.close();
+                    return false;
+                }
+                length += read;
+                return true;
+            } catch(IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+    }
+
+    //decodes a mapped file on demand, a chunk at a time
+    private static class DecodingReader extends Reader {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder;
+        private boolean flushed = false;
+
+        DecodingReader(ByteBuffer bytes, Charset charset) {
+            this.bytes = bytes;
+            //same behaviour as new String(bytes, charset) on bad input
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public int read(char[] chars, int off, int len) {
+            if(flushed) return -1;
+
+            CharBuffer out = CharBuffer.wrap(chars, off, len);
+            decoder.decode(bytes, out, true);
+            if(!bytes.hasRemaining()) {
+                if(decoder.flush(out).isUnderflow()) flushed = true;
+            }
+
+            int read = out.position() - off;
+            if(read == 0 && flushed) return -1;
+            return read;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
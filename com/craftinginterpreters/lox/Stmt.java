@@ -2,8 +2,8 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Stmt {
- interface Visitor<R> {
+public abstract class Stmt {
+ public interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitExpressionStmt(Expression stmt);
     R visitFunctionStmt(Function stmt);
@@ -12,33 +12,35 @@ abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
+    R visitForStmt(For stmt);
     R visitBreakStmt(Break stmt);
  }
- static class Block extends Stmt {
+ public static class Block extends Stmt {
     Block(List<Stmt> statements) {
     this.statements = statements;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitBlockStmt(this);
     }
 
-    final List<Stmt> statements;
+    public final List<Stmt> statements;
+    public int frameSize;
  }
- static class Expression extends Stmt {
+ public static class Expression extends Stmt {
     Expression(Expr expression) {
     this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitExpressionStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
  }
- static class Function extends Stmt {
+ public static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
     this.name = name;
     this.params = params;
@@ -46,15 +48,20 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitFunctionStmt(this);
     }
 
-    final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
+    public final Token name;
+    public final List<Token> params;
+    public final List<Stmt> body;
+    public int frameSize;
+    public Memo memo;
+    public int calls;
+    public CompiledCode compiled;
+    public boolean deoptimized;
  }
- static class If extends Stmt {
+ public static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
     this.condition = condition;
     this.thenBranch = thenBranch;
@@ -62,80 +69,108 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitIfStmt(this);
     }
 
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    public final Expr condition;
+    public final Stmt thenBranch;
+    public final Stmt elseBranch;
  }
- static class Print extends Stmt {
-    Print(Expr expression) {
+ public static class Print extends Stmt {
+    Print(Token keyword, Expr expression) {
+    this.keyword = keyword;
     this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitPrintStmt(this);
     }
 
-    final Expr expression;
+    public final Token keyword;
+    public final Expr expression;
  }
- static class Return extends Stmt {
+ public static class Return extends Stmt {
     Return(Token keyword, Expr value) {
     this.keyword = keyword;
     this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitReturnStmt(this);
     }
 
-    final Token keyword;
-    final Expr value;
+    public final Token keyword;
+    public final Expr value;
+    public boolean tailCall;
  }
- static class Var extends Stmt {
+ public static class Var extends Stmt {
     Var(Token name, Expr initializer) {
     this.name = name;
     this.initializer = initializer;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitVarStmt(this);
     }
 
-    final Token name;
-    final Expr initializer;
+    public final Token name;
+    public final Expr initializer;
  }
- static class While extends Stmt {
+ public static class While extends Stmt {
     While(Expr condition, Stmt body) {
     this.condition = condition;
     this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitWhileStmt(this);
     }
 
-    final Expr condition;
-    final Stmt body;
+    public final Expr condition;
+    public final Stmt body;
+    public int backEdges;
+    public CompiledCode compiled;
+    public boolean deoptimized;
+ }
+ public static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+    this.initializer = initializer;
+    this.condition = condition;
+    this.increment = increment;
+    this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor <R> visitor) {
+    return visitor.visitForStmt(this);
+    }
+
+    public final Stmt initializer;
+    public final Expr condition;
+    public final Expr increment;
+    public final Stmt body;
+    public int frameSize;
+    public int backEdges;
+    public CompiledCode compiled;
+    public boolean deoptimized;
  }
- static class Break extends Stmt {
+ public static class Break extends Stmt {
     Break(Token keyword) {
     this.keyword = keyword;
     }
 
     @Override
-    <R> R accept(Visitor <R> visitor) {
+    public <R> R accept(Visitor <R> visitor) {
     return visitor.visitBreakStmt(this);
     }
 
-    final Token keyword;
+    public final Token keyword;
  }
 
- abstract <R> R accept(Visitor<R> visitor);
+ public abstract <R> R accept(Visitor<R> visitor);
 }
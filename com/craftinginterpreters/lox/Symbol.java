@@ -0,0 +1,104 @@
+package com.craftinginterpreters.lox;
+
+//an interned identifier. There is only ever one Symbol per name, so
+//symbols compare by identity, hash by a value computed once, and can
+//index arrays by their dense id.
+public final class Symbol {
+    public final String name;
+    public final int id;
+    private final int hash;
+
+    private Symbol(String name, int id, int hash) {
+        this.name = name;
+        this.id = id;
+        this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    //the table is shared by every interpreter in the process and never
+    //shrinks, so only global names go in (see Token.symbol); locals and
+    //spellings stay with their own program, see Names. Lookups read it
+    //without locking; a miss takes the lock and looks again before
+    //adding, so each name still gets exactly one Symbol.
+    private static final Object lock = new Object();
+    private static volatile Symbol[] table = new Symbol[1024];
+    private static int count = 0;
+
+    static Symbol intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    private static Symbol intern(CharSequence text, int start, int end) {
+        //same hash String would compute, so a name hashes once either way
+        int hash = 0;
+        for(int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+
+        Symbol symbol = find(table, text, start, end, hash);
+        if(symbol != null) return symbol;
+
+        synchronized(lock) {
+            Symbol[] symbols = table;
+            symbol = find(symbols, text, start, end, hash);
+            if(symbol != null) return symbol;
+
+            symbol = new Symbol(text.subSequence(start, end).toString(), count++, hash);
+            if(count * 2 > symbols.length) {
+                symbols = grow(symbols);
+            }
+            insert(symbols, symbol);
+            table = symbols;
+            return symbol;
+        }
+    }
+
+    private static Symbol find(Symbol[] symbols, CharSequence text,
+                               int start, int end, int hash) {
+        int mask = symbols.length - 1;
+        for(int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            Symbol symbol = symbols[i];
+            if(symbol == null) return null;
+            if(symbol.hash == hash && matches(symbol.name, text, start, end)) {
+                return symbol;
+            }
+        }
+    }
+
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if(name.length() != end - start) return false;
+        for(int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) != text.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static void insert(Symbol[] symbols, Symbol symbol) {
+        int mask = symbols.length - 1;
+        int i = spread(symbol.hash) & mask;
+        while(symbols[i] != null) i = (i + 1) & mask;
+        symbols[i] = symbol;
+    }
+
+    private static Symbol[] grow(Symbol[] symbols) {
+        Symbol[] grown = new Symbol[symbols.length * 2];
+        for(Symbol symbol : symbols) {
+            if(symbol != null) insert(grown, symbol);
+        }
+        return grown;
+    }
+
+    //identifiers share prefixes, so mix the high bits down before masking
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
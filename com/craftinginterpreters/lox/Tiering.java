@@ -0,0 +1,245 @@
+package com.craftinginterpreters.lox;
+
+//tier 1 for the tree-walker. The Interpreter counts calls per function and
+//back edges per loop; past a threshold the code is handed to JvmCompiler
+//and runs as a hidden class from then on. Both tiers use the same
+//Environments, so a loop can switch over between two iterations and a
+//function between two calls without translating any state.
+//
+//Compiled code that speculated wrong hands control back: a failed guard
+//makes it return null, or throw Deopt out of a call that did nothing
+//visible, and the code is dropped, run on tier 0 and compiled again later
+//without speculating. Code JvmCompiler can't take stays on tier 0 for good.
+//
+//The static helpers below are what compiled code calls for anything but
+//arithmetic on known numbers, each with the tree-walker's checks and
+//messages.
+class Tiering {
+    static final int HOT_CALLS = 1000;
+    static final int HOT_BACK_EDGES = 10000;
+
+    //a speculation in a direct call (see JvmCompiler) failed; the call
+    //has no effects, so it can be run again from the start
+    static final class Deopt extends RuntimeException {
+        static final Deopt INSTANCE = new Deopt();
+
+        private Deopt() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Interpreter interpreter;
+
+    Tiering(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    //a function body in its filled frame, on whichever tier it is on
+    Completion execute(Stmt.Function function, Environment frame) {
+        CompiledCode code = function.compiled;
+        if(code == null) {
+            if(++function.calls != HOT_CALLS || (code = compile(function, frame)) == null) {
+                return interpreter.executeBody(function, frame);
+            }
+        }
+
+        try {
+            Completion completion = code.execute(interpreter, frame);
+            if(completion != null) return completion;
+        } catch(Deopt deopt) {
+            //nothing to undo
+        }
+        function.compiled = null;
+        function.calls = 0;
+        function.deoptimized = true;
+        return interpreter.executeBody(function, frame);
+    }
+
+    //null if the body can't be compiled; it then stays on tier 0. The
+    //Sampler's shadow stack needs every call to go through LoxFunction,
+    //which direct calls skip, so --sample turns speculation off.
+    private CompiledCode compile(Stmt.Function function, Environment frame) {
+        try {
+            function.compiled = JvmCompiler.compile(function, frame,
+                !function.deoptimized && interpreter.sampler == null);
+        } catch(RuntimeException | LinkageError error) {
+            function.calls = Integer.MIN_VALUE;
+        }
+        return function.compiled;
+    }
+
+    CompiledCode compile(Stmt.While loop) {
+        try {
+            loop.compiled = JvmCompiler.compile(loop);
+        } catch(RuntimeException | LinkageError error) {
+            loop.backEdges = Integer.MIN_VALUE;
+        }
+        return loop.compiled;
+    }
+
+    //frame holds the loop variable, if it has one
+    CompiledCode compile(Stmt.For loop, Environment frame) {
+        try {
+            loop.compiled = JvmCompiler.compile(loop, frame, !loop.deoptimized);
+        } catch(RuntimeException | LinkageError error) {
+            loop.backEdges = Integer.MIN_VALUE;
+        }
+        return loop.compiled;
+    }
+
+    Completion execute(Stmt.While loop, Environment environment) {
+        return loop.compiled.execute(interpreter, environment);
+    }
+
+    //the loop from its next condition check on, or null when its variable
+    //no longer holds what it was compiled for; tier 0 carries on then
+    Completion execute(Stmt.For loop, Environment frame) {
+        Completion completion = loop.compiled.execute(interpreter, frame);
+        if(completion == null) {
+            loop.compiled = null;
+            loop.backEdges = 0;
+            loop.deoptimized = true;
+        }
+        return completion;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if(left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+        if(left instanceof String || right instanceof String) {
+            return Interpreter.stringify(left) + Interpreter.stringify(right);
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers of two string.");
+    }
+
+    static double subtract(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static double multiply(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static double divide(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return divide((double)left, (double)right, operator);
+    }
+
+    static double divide(double left, double right, Token operator) {
+        if(right == 0) throw new RuntimeError(operator, "Division by zero not allowed.");
+        return left / right;
+    }
+
+    static double negate(Object right, Token operator) {
+        if(!(right instanceof Double)) throw new RuntimeError(operator, "Operand must be a number");
+        return -(double)right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumbers(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    private static void checkNumbers(Token operator, Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static void print(Interpreter interpreter, Object value) {
+        interpreter.context.out.println(Interpreter.stringify(value));
+    }
+
+    //calls, with the arguments already evaluated; see Interpreter.call
+    static Object call0(Interpreter interpreter, Object callee, Expr.Call call) {
+        try {
+            return interpreter.checkCall(callee, call).call0(interpreter);
+        } catch(NativeError error) {
+            throw new RuntimeError(call.paren, error.getMessage());
+        }
+    }
+
+    static Object call1(Interpreter interpreter, Object callee, Expr.Call call, Object a) {
+        try {
+            return interpreter.checkCall(callee, call).call1(interpreter, a);
+        } catch(NativeError error) {
+            throw new RuntimeError(call.paren, error.getMessage());
+        }
+    }
+
+    static Object call2(Interpreter interpreter, Object callee, Expr.Call call, Object a, Object b) {
+        try {
+            return interpreter.checkCall(callee, call).call2(interpreter, a, b);
+        } catch(NativeError error) {
+            throw new RuntimeError(call.paren, error.getMessage());
+        }
+    }
+
+    static Object call3(Interpreter interpreter, Object callee, Expr.Call call,
+                        Object a, Object b, Object c) {
+        try {
+            return interpreter.checkCall(callee, call).call3(interpreter, a, b, c);
+        } catch(NativeError error) {
+            throw new RuntimeError(call.paren, error.getMessage());
+        }
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Expr.Call call, Object[] arguments) {
+        try {
+            return interpreter.checkCall(callee, call).call(interpreter, arguments);
+        } catch(NativeError error) {
+            throw new RuntimeError(call.paren, error.getMessage());
+        }
+    }
+
+    //see Interpreter.visitReturnStmt
+    static Completion tailCall(Interpreter interpreter, Object callee, Expr.Call call,
+                               Object[] arguments) {
+        if(callee instanceof LoxFunction && Interpreter.isTailCallable((LoxFunction)callee, call)) {
+            LoxFunction function = (LoxFunction)callee;
+            Environment frame = function.newFrame();
+            for(Object argument : arguments) {
+                frame.define(argument);
+            }
+            interpreter.tailCallee = function;
+            interpreter.tailFrame = frame;
+            return Completion.TAIL_CALL;
+        }
+        interpreter.returnValue = call(interpreter, callee, call, arguments);
+        return Completion.RETURN;
+    }
+
+    //guards for direct calls: the callee is still the function being
+    //compiled, as its closure, and an argument is still a number
+    static Environment self(Object callee, Stmt.Function declaration) {
+        if(callee instanceof LoxFunction && ((LoxFunction)callee).declaration == declaration) {
+            return ((LoxFunction)callee).closure();
+        }
+        throw Deopt.INSTANCE;
+    }
+
+    static double unbox(Object value) {
+        if(value instanceof Double) return (double)value;
+        throw Deopt.INSTANCE;
+    }
+}
@@ -1,9 +1,14 @@
 package com.craftinginterpreters.lox;
-class Token {
-    final TokenType type;
-    final String lexeme;
-    final Object literal;
-    final int line;
+public class Token {
+    public final TokenType type;
+    public final String lexeme;
+    public final Object literal;
+    public final int line;
+    //the interned name, looked up the first time a global is reached
+    //through this token. Locals never ask, so the process-wide table only
+    //holds names some program used as a global. Two threads may both look
+    //it up, but they find the same Symbol.
+    private Symbol symbol = null;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
@@ -12,6 +17,15 @@ class Token {
         this.line= line;
     }
 
+    Symbol symbol() {
+        Symbol symbol = this.symbol;
+        if(symbol == null) {
+            symbol = Symbol.intern(lexeme);
+            this.symbol = symbol;
+        }
+        return symbol;
+    }
+
     public String toString() {
         return type + " " + lexeme + " " + literal;
     }
@@ -0,0 +1,128 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+//every token of a source as parallel primitive arrays instead of one
+//object per token. Lexemes and literals are cut out of the source only
+//when a Token is asked for.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+    private final String[] spellings = new String[TYPES.length];
+    private final Names names = new Names();
+
+    TokenBuffer(CharSequence source) {
+        this.source = source;
+        //roughly one token for every five characters of typical code
+        int capacity = Math.max(16, source.length() / 5);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if(size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        TokenType type = type(index);
+        switch(type) {
+            case IDENTIFIER:
+                return names.intern(source, starts[index], starts[index] + lengths[index]);
+            case NUMBER:
+            case STRING:
+            case EOF:
+                return text(index);
+            default:
+                //keywords and operators are always spelled the same, so
+                //every occurrence can share the first one's lexeme
+                String lexeme = spellings[type.ordinal()];
+                if(lexeme == null) {
+                    lexeme = text(index);
+                    spellings[type.ordinal()] = lexeme;
+                }
+                return lexeme;
+        }
+    }
+
+    private String text(int index) {
+        return source.subSequence(starts[index], starts[index] + lengths[index]).toString();
+    }
+
+    Token token(int index) {
+        TokenType type = type(index);
+        String lexeme = lexeme(index);
+        return new Token(type, lexeme, Scanner.literal(type, lexeme), lines[index]);
+    }
+
+    //each Parser gets its own cursor, so one buffer can be parsed many times
+    TokenSource cursor() {
+        return new Cursor();
+    }
+
+    private class Cursor implements TokenSource {
+        private int current = 0;
+        //the Parser usually asks for the same token more than once in a
+        //row, e.g. previous() right after match(), so keep the last one
+        private int cachedIndex = -1;
+        private Token cached = null;
+
+        @Override
+        public TokenType peekType() {
+            return TYPES[types[current]];
+        }
+
+        @Override
+        public Token peek() {
+            return at(current);
+        }
+
+        @Override
+        public Token previous() {
+            return at(current - 1);
+        }
+
+        @Override
+        public void advance() {
+            if(types[current] != TokenType.EOF.ordinal()) current++;
+        }
+
+        private Token at(int index) {
+            if(index != cachedIndex) {
+                cached = token(index);
+                cachedIndex = index;
+            }
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+//what the Parser reads from: a cursor over the token sequence that can
+//answer the common question, the type of the next token, without
+//building a Token. Once the cursor is on EOF, advance() leaves it there.
+interface TokenSource {
+    TokenType peekType();
+
+    Token peek();
+
+    //the token advance() last moved past
+    Token previous();
+
+    void advance();
+}
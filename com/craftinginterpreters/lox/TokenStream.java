@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+import java.util.function.Supplier;
+
+//a TokenSource over tokens that are produced one at a time. Only the
+//current and previous token are kept alive.
+class TokenStream implements TokenSource {
+    private final Supplier<Token> tokens;
+    private Token previous = null;
+    private Token current;
+
+    TokenStream(Supplier<Token> tokens) {
+        this.tokens = tokens;
+        this.current = tokens.get();
+    }
+
+    @Override
+    public TokenType peekType() {
+        return current.type;
+    }
+
+    @Override
+    public Token peek() {
+        return current;
+    }
+
+    @Override
+    public Token previous() {
+        return previous;
+    }
+
+    @Override
+    public void advance() {
+        if(current.type == TokenType.EOF) return;
+        previous = current;
+        current = tokens.get();
+    }
+}
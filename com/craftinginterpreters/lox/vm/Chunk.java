@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+    byte[] code = new byte[8];
+    int[] lines = new int[8];
+    int count = 0;
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    Object[] constants;
+
+    void write(byte b, int line) {
+        if(count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        //numbers and strings get reused a lot (loop bounds, names), so share them
+        Integer index = constantIndex.get(value);
+        if(index != null) return index;
+
+        constantList.add(value);
+        constantIndex.put(value, constantList.size() - 1);
+        return constantList.size() - 1;
+    }
+
+    //trim the buffers once the compiler is done with them
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
@@ -0,0 +1,647 @@
+package com.craftinginterpreters.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.craftinginterpreters.lox.Expr;
+import com.craftinginterpreters.lox.Stmt;
+import com.craftinginterpreters.lox.Token;
+
+//single pass over an already resolved tree, so it can assume there are
+//no scoping mistakes left and only has to lay out stack slots
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_SHORT = 0xffff;
+
+    public static class CompileError extends RuntimeException {
+        public final int line;
+
+        CompileError(int line, String message) {
+            super(message);
+            this.line = line;
+        }
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, ObjFunction function) {
+            this.enclosing = enclosing;
+            this.function = function;
+            //slot zero holds the closure being called
+            locals.add(new Local("", 0));
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current;
+    private int line = 1;
+
+    public Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    public ObjFunction compile(List<Stmt> statements, boolean isPrompt) {
+        current = new FunctionState(null, new ObjFunction(null, 0));
+
+        for(Stmt statement : statements) {
+            if(isPrompt && statement instanceof Stmt.Expression) {
+                compile(((Stmt.Expression)statement).expression);
+                emit(OpCode.PRINT);
+            } else {
+                compile(statement);
+            }
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+
+        ObjFunction script = current.function;
+        script.chunk.finish();
+        script.maxStack = maxStack(script);
+        current = null;
+        return script;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for(Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        if(current.scopeDepth > 0) {
+            //mark it initialized straight away so the body can recurse
+            addLocal(stmt.name);
+            markInitialized();
+            function(stmt);
+        } else {
+            function(stmt);
+            emitShort(OpCode.DEFINE_GLOBAL, vm.globalSlot(stmt.name.lexeme));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if(stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if(stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        if(current.scopeDepth > 0) {
+            //the initializer's value is left on the stack and becomes the slot
+            addLocal(stmt.name);
+            compileInitializer(stmt.initializer);
+            markInitialized();
+        } else {
+            compileInitializer(stmt.initializer);
+            emitShort(OpCode.DEFINE_GLOBAL, vm.globalSlot(stmt.name.lexeme));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+
+        current.loop = new Loop(current.loop, current.scopeDepth);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        //breaks have already popped the condition, so they land after it
+        for(int jump : current.loop.breakJumps) {
+            patchJump(jump);
+        }
+        current.loop = current.loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        //the loop variable lives in a scope around the whole loop
+        beginScope();
+        if(stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = current.function.chunk.count;
+        int exitJump = -1;
+        if(stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+        }
+
+        current.loop = new Loop(current.loop, current.scopeDepth);
+        compile(stmt.body);
+        if(stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+
+        if(exitJump != -1) {
+            patchJump(exitJump);
+            emit(OpCode.POP);
+        }
+        for(int jump : current.loop.breakJumps) {
+            patchJump(jump);
+        }
+        current.loop = current.loop.enclosing;
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.keyword.line;
+        if(current.loop == null) {
+            throw new CompileError(line, "Can't use break outside of a loop");
+        }
+        //discard everything declared inside the loop without forgetting it,
+        //the code after the break still belongs to those scopes
+        List<Local> locals = current.locals;
+        for(int i = locals.size() - 1;
+            i >= 0 && locals.get(i).depth > current.loop.scopeDepth; i--) {
+            emit(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+        current.loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        int arg = resolveLocal(current, expr.name);
+        if(arg != -1) {
+            emitByte(OpCode.SET_LOCAL, arg);
+        } else if((arg = resolveUpvalue(current, expr.name)) != -1) {
+            emitByte(OpCode.SET_UPVALUE, arg);
+        } else {
+            emitShort(OpCode.SET_GLOBAL, vm.globalSlot(expr.name.lexeme));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch(expr.operator.type) {
+            case BANG_EQUAL:
+                emit(OpCode.EQUAL);
+                emit(OpCode.NOT);
+                break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case PLUS: emit(OpCode.ADD); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            default:
+                throw new CompileError(line,
+                    "Unknown binary operator '" + expr.operator.lexeme + "'.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for(Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitByte(OpCode.CALL, expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value == null) {
+            emit(OpCode.NIL);
+        } else if(expr.value == Boolean.TRUE) {
+            emit(OpCode.TRUE);
+        } else if(expr.value == Boolean.FALSE) {
+            emit(OpCode.FALSE);
+        } else {
+            emitShort(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+
+        switch(expr.operator.type) {
+            case OR: {
+                int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+                int endJump = emitJump(OpCode.JUMP);
+                patchJump(elseJump);
+                emit(OpCode.POP);
+                compile(expr.right);
+                patchJump(endJump);
+                break;
+            }
+            default: { //and case
+                int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+                emit(OpCode.POP);
+                compile(expr.right);
+                patchJump(endJump);
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch(expr.operator.type) {
+            case BANG: emit(OpCode.NOT); break;
+            case MINUS: emit(OpCode.NEGATE); break;
+            default:
+                throw new CompileError(line,
+                    "Unknown unary operator '" + expr.operator.lexeme + "'.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.thenBranch);
+
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emit(OpCode.POP);
+        compile(expr.elseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        int arg = resolveLocal(current, expr.name);
+        if(arg != -1) {
+            emitByte(OpCode.GET_LOCAL, arg);
+        } else if((arg = resolveUpvalue(current, expr.name)) != -1) {
+            emitByte(OpCode.GET_UPVALUE, arg);
+        } else {
+            emitShort(OpCode.GET_GLOBAL, vm.globalSlot(expr.name.lexeme));
+        }
+        return null;
+    }
+
+    private void function(Stmt.Function stmt) {
+        current = new FunctionState(current,
+            new ObjFunction(stmt.name.lexeme, stmt.params.size()));
+        beginScope();
+        for(Token param : stmt.params) {
+            addLocal(param);
+            markInitialized();
+        }
+        for(Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN);
+
+        FunctionState compiled = current;
+        compiled.function.upvalueCount = compiled.upvalues.size();
+        compiled.function.chunk.finish();
+        compiled.function.maxStack = maxStack(compiled.function);
+        current = compiled.enclosing;
+
+        line = stmt.name.line;
+        emitShort(OpCode.CLOSURE, makeConstant(compiled.function));
+        for(Upvalue upvalue : compiled.upvalues) {
+            emit(upvalue.isLocal ? (byte)1 : (byte)0);
+            emit((byte)upvalue.index);
+        }
+    }
+
+    private void compileInitializer(Expr initializer) {
+        if(initializer != null) {
+            compile(initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while(!locals.isEmpty() &&
+              locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emit(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    private void addLocal(Token name) {
+        if(current.locals.size() == MAX_LOCALS) {
+            throw new CompileError(name.line,
+                "Too many local variables in function.");
+        }
+        //-1 until the initializer is done, like the Resolver's declare/define
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void markInitialized() {
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private int resolveLocal(FunctionState state, Token name) {
+        for(int i = state.locals.size() - 1; i >= 0; i--) {
+            if(state.locals.get(i).name.equals(name.lexeme)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if(state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if(local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for(int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if(upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if(state.upvalues.size() == MAX_UPVALUES) {
+            throw new CompileError(line, "Too many closure variables in function.");
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private int makeConstant(Object value) {
+        int index = current.function.chunk.addConstant(value);
+        if(index > MAX_SHORT) {
+            throw new CompileError(line, "Too many constants in one chunk.");
+        }
+        return index;
+    }
+
+    //follows every path through the chunk, tracking how deep the stack is
+    //at each instruction, so the VM can make room for a whole call up front.
+    //Paths that meet always agree, since each statement leaves the stack
+    //as it found it.
+    private static int maxStack(ObjFunction function) {
+        byte[] code = function.chunk.code;
+        Object[] constants = function.chunk.constants;
+        //depth before each instruction, -1 until a path reaches it
+        int[] depths = new int[code.length];
+        Arrays.fill(depths, -1);
+        int[] pending = new int[code.length + 1];
+        int pendingCount = 0;
+        int max = function.arity + 1;
+
+        depths[0] = max;
+        pending[pendingCount++] = 0;
+        while(pendingCount > 0) {
+            int ip = pending[--pendingCount];
+            int depth = depths[ip];
+            for(;;) {
+                max = Math.max(max, depth);
+                byte op = code[ip];
+                int next = ip + 1;
+                //where a jump goes, or -1
+                int target = -1;
+                switch(op) {
+                    case OpCode.CONSTANT:
+                    case OpCode.GET_GLOBAL:
+                        depth++; next = ip + 3; break;
+                    case OpCode.NIL:
+                    case OpCode.TRUE:
+                    case OpCode.FALSE:
+                        depth++; break;
+                    case OpCode.POP:
+                    case OpCode.PRINT:
+                    case OpCode.CLOSE_UPVALUE:
+                    case OpCode.EQUAL:
+                    case OpCode.GREATER:
+                    case OpCode.GREATER_EQUAL:
+                    case OpCode.LESS:
+                    case OpCode.LESS_EQUAL:
+                    case OpCode.ADD:
+                    case OpCode.SUBTRACT:
+                    case OpCode.MULTIPLY:
+                    case OpCode.DIVIDE:
+                        depth--; break;
+                    case OpCode.NOT:
+                    case OpCode.NEGATE:
+                        break;
+                    case OpCode.GET_LOCAL:
+                    case OpCode.GET_UPVALUE:
+                        depth++; next = ip + 2; break;
+                    case OpCode.SET_LOCAL:
+                    case OpCode.SET_UPVALUE:
+                        next = ip + 2; break;
+                    case OpCode.SET_GLOBAL:
+                        next = ip + 3; break;
+                    case OpCode.DEFINE_GLOBAL:
+                        depth--; next = ip + 3; break;
+                    case OpCode.CALL:
+                        depth -= code[ip + 1] & 0xff; next = ip + 2; break;
+                    case OpCode.CLOSURE: {
+                        int constant = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                        depth++;
+                        next = ip + 3 + 2 * ((ObjFunction)constants[constant]).upvalueCount;
+                        break;
+                    }
+                    case OpCode.JUMP_IF_FALSE:
+                        target = ip + 3 + (((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff));
+                        next = ip + 3;
+                        break;
+                    case OpCode.JUMP:
+                        next = ip + 3 + (((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff));
+                        break;
+                    case OpCode.LOOP:
+                        next = ip + 3 - (((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff));
+                        break;
+                    case OpCode.RETURN:
+                        next = -1; break;
+                }
+                if(target != -1 && depths[target] == -1) {
+                    depths[target] = depth;
+                    pending[pendingCount++] = target;
+                }
+                if(next == -1 || depths[next] != -1) break;
+                depths[next] = depth;
+                ip = next;
+            }
+        }
+        return max;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void emit(byte b) {
+        current.function.chunk.write(b, line);
+    }
+
+    private void emitByte(byte op, int operand) {
+        emit(op);
+        emit((byte)operand);
+    }
+
+    private void emitShort(byte op, int operand) {
+        emit(op);
+        emit((byte)((operand >> 8) & 0xff));
+        emit((byte)(operand & 0xff));
+    }
+
+    private int emitJump(byte op) {
+        emitShort(op, 0xffff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        //-2 to skip over the jump offset itself
+        int jump = current.function.chunk.count - offset - 2;
+        if(jump > MAX_SHORT) {
+            throw new CompileError(line, "Too much code to jump over.");
+        }
+
+        byte[] code = current.function.chunk.code;
+        code[offset] = (byte)((jump >> 8) & 0xff);
+        code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        int offset = current.function.chunk.count - loopStart + 3;
+        if(offset > MAX_SHORT) {
+            throw new CompileError(line, "Loop body too large.");
+        }
+        emitShort(OpCode.LOOP, offset);
+    }
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox.vm;
+
+abstract class NativeFunction {
+    final int arity;
+
+    NativeFunction(int arity) {
+        this.arity = arity;
+    }
+
+    abstract Object call(Object[] arguments);
+
+    @Override
+    public String toString() { return "<native fn>";}
+}
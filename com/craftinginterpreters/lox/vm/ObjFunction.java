@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox.vm;
+
+public class ObjFunction {
+    final String name;
+    final int arity;
+    int upvalueCount = 0;
+    //the most stack slots a call uses, counting the closure and arguments;
+    //set by the Compiler once the chunk is finished
+    int maxStack = 0;
+    final Chunk chunk = new Chunk();
+
+    ObjFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if(name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
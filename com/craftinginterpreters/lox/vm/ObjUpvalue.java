@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox.vm;
+
+//points at a stack slot while the variable is still live, then holds
+//the value itself once the slot is popped
+class ObjUpvalue {
+    final int slot;
+    boolean closed = false;
+    Object value;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -0,0 +1,39 @@
+package com.craftinginterpreters.lox.vm;
+
+//one byte per instruction; operands follow inline. Constant and global
+//indexes are two bytes, local/upvalue slots and argument counts are one.
+final class OpCode {
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    static final byte GET_GLOBAL = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL = 9;
+    static final byte GET_UPVALUE = 10;
+    static final byte SET_UPVALUE = 11;
+    static final byte EQUAL = 12;
+    static final byte GREATER = 13;
+    static final byte GREATER_EQUAL = 14;
+    static final byte LESS = 15;
+    static final byte LESS_EQUAL = 16;
+    static final byte ADD = 17;
+    static final byte SUBTRACT = 18;
+    static final byte MULTIPLY = 19;
+    static final byte DIVIDE = 20;
+    static final byte NOT = 21;
+    static final byte NEGATE = 22;
+    static final byte PRINT = 23;
+    static final byte JUMP = 24;
+    static final byte JUMP_IF_FALSE = 25;
+    static final byte LOOP = 26;
+    static final byte CALL = 27;
+    static final byte CLOSURE = 28;
+    static final byte CLOSE_UPVALUE = 29;
+    static final byte RETURN = 30;
+
+    private OpCode() {}
+}
@@ -0,0 +1,451 @@
+package com.craftinginterpreters.lox.vm;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.craftinginterpreters.lox.RuntimeError;
+
+public class VM {
+    public static final int DEFAULT_MAX_DEPTH = 1 << 20;
+    private static final int INITIAL_FRAMES = 64;
+    //stack slots set aside per initial frame; a call makes sure there is
+    //room for its function's maxStack before it starts
+    private static final int FRAME_SLOTS = 256;
+    //marks a global slot the compiler handed out but nothing has defined yet
+    private static final Object UNDEFINED = new Object();
+
+    //call frames live in these parallel arrays rather than on the Java
+    //stack, and both they and the value stack grow on demand, so the only
+    //limit on recursion is maxDepth
+    private final int maxDepth;
+    //where print goes
+    private final PrintStream out;
+    private ObjClosure[] frameClosures = new ObjClosure[INITIAL_FRAMES];
+    private int[] frameIps = new int[INITIAL_FRAMES];
+    private int[] frameSlots = new int[INITIAL_FRAMES];
+    private int frameCount = 0;
+    private Object[] stack = new Object[INITIAL_FRAMES * FRAME_SLOTS];
+    private int stackTop = 0;
+    private ObjUpvalue openUpvalues = null;
+
+    //globals are resolved to an index at compile time and only keep
+    //their names around for error messages
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[16];
+    private Object[] globals = new Object[16];
+
+    public VM() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    public VM(int maxDepth) {
+        this(maxDepth, System.out);
+    }
+
+    public VM(int maxDepth, PrintStream out) {
+        this.maxDepth = maxDepth;
+        this.out = out;
+        defineNative("clock", new NativeFunction(0) {
+            @Override
+            Object call(Object[] arguments) {
+                return (double) System.currentTimeMillis()/ 1000.0;
+            }
+        });
+    }
+
+    public void interpret(ObjFunction script) {
+        ObjClosure closure = new ObjClosure(script);
+        if(script.maxStack > stack.length) growStack(script.maxStack);
+        push(closure);
+        frameClosures[0] = closure;
+        frameIps[0] = 0;
+        frameSlots[0] = 0;
+        frameCount = 1;
+
+        try {
+            run();
+            //slots above the top aren't cleared on return, so a deep
+            //recursion would otherwise keep what it left there alive
+            if(stack.length > INITIAL_FRAMES * FRAME_SLOTS) resetStack();
+        } catch(RuntimeError error) {
+            resetStack();
+            throw error;
+        }
+    }
+
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if(slot != null) return slot;
+
+        slot = globalSlots.size();
+        if(slot == globals.length) {
+            globals = Arrays.copyOf(globals, slot * 2);
+            globalNames = Arrays.copyOf(globalNames, slot * 2);
+        }
+        globals[slot] = UNDEFINED;
+        globalNames[slot] = name;
+        globalSlots.put(name, slot);
+        return slot;
+    }
+
+    private void defineNative(String name, NativeFunction function) {
+        globals[globalSlot(name)] = function;
+    }
+
+    private void run() {
+        //the closure of the running frame
+        ObjClosure frame = frameClosures[frameCount - 1];
+        byte[] code = frame.function.chunk.code;
+        Object[] constants = frame.function.chunk.constants;
+        int ip = frameIps[frameCount - 1];
+        int slots = frameSlots[frameCount - 1];
+        Object[] stack = this.stack;
+        int sp = stackTop;
+
+        for(;;) {
+            switch(code[ip++]) {
+                case OpCode.CONSTANT:
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.GET_LOCAL:
+                    stack[sp++] = stack[slots + (code[ip++] & 0xff)];
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[slots + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    Object value = globals[slot];
+                    if(value == UNDEFINED) {
+                        throw error(ip, "Undefined variable'" + globalNames[slot] + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL:
+                    globals[readShort(code, ip)] = stack[--sp];
+                    ip += 2;
+                    break;
+                case OpCode.SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    if(globals[slot] == UNDEFINED) {
+                        throw error(ip, "Undefined variable '" + globalNames[slot] + "' .");
+                    }
+                    globals[slot] = stack[sp - 1];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.upvalues[code[ip++] & 0xff];
+                    stack[sp++] = upvalue.closed ? upvalue.value : stack[upvalue.slot];
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.upvalues[code[ip++] & 0xff];
+                    if(upvalue.closed) {
+                        upvalue.value = stack[sp - 1];
+                    } else {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a > (double) b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a >= (double) b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a < (double) b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a <= (double) b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (double) a + (double) b;
+                    } else if(a instanceof String && b instanceof String) {
+                        stack[sp - 1] = (String) a + (String) b;
+                    } else if(a instanceof String || b instanceof String) {
+                        stack[sp - 1] = stringify(a) + stringify(b);
+                    } else {
+                        throw error(ip, "Operands must be two numbers of two string.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a - (double) b;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double) a * (double) b;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double && b instanceof Double)) {
+                        throw error(ip, "Operands must be numbers.");
+                    }
+                    if((double) b == 0) {
+                        throw error(ip, "Division by zero not allowed.");
+                    }
+                    stack[sp - 1] = (double) a / (double) b;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object a = stack[sp - 1];
+                    if(!(a instanceof Double)) {
+                        throw error(ip, "Operand must be a number");
+                    }
+                    stack[sp - 1] = -(double) a;
+                    break;
+                }
+                case OpCode.PRINT:
+                    out.println(stringify(stack[--sp]));
+                    break;
+                case OpCode.JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if(isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                    break;
+                case OpCode.LOOP:
+                    ip -= readShort(code, ip) - 2;
+                    break;
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    Object callee = stack[sp - 1 - argCount];
+                    if(callee instanceof ObjClosure) {
+                        ObjClosure closure = (ObjClosure) callee;
+                        if(argCount != closure.function.arity) {
+                            throw error(ip, "Expected " + closure.function.arity +
+                                " arguments but got" + argCount + ".");
+                        }
+                        if(frameCount == maxDepth) {
+                            throw error(ip, "Stack overflow.");
+                        }
+                        if(frameCount == frameClosures.length) growFrames();
+                        frameIps[frameCount - 1] = ip;
+
+                        frame = closure;
+                        slots = sp - argCount - 1;
+                        if(slots + closure.function.maxStack > stack.length) {
+                            stack = growStack(slots + closure.function.maxStack);
+                        }
+                        frameClosures[frameCount] = frame;
+                        frameSlots[frameCount] = slots;
+                        frameCount++;
+                        code = closure.function.chunk.code;
+                        constants = closure.function.chunk.constants;
+                        ip = 0;
+                    } else if(callee instanceof NativeFunction) {
+                        NativeFunction function = (NativeFunction) callee;
+                        if(argCount != function.arity) {
+                            throw error(ip, "Expected " + function.arity +
+                                " arguments but got" + argCount + ".");
+                        }
+                        Object[] arguments = Arrays.copyOfRange(stack, sp - argCount, sp);
+                        stackTop = sp;
+                        Object result = function.call(arguments);
+                        sp -= argCount + 1;
+                        stack[sp++] = result;
+                    } else {
+                        throw error(ip, "Can only call functions and classes.");
+                    }
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants[readShort(code, ip)];
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    for(int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal
+                            ? captureUpvalue(slots + index)
+                            : frame.upvalues[index];
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(slots);
+                    frameCount--;
+                    if(frameCount == 0) {
+                        //drop the script closure too
+                        stackTop = 0;
+                        return;
+                    }
+
+                    sp = slots;
+                    stack[sp++] = result;
+                    frameClosures[frameCount] = null;
+                    frame = frameClosures[frameCount - 1];
+                    code = frame.function.chunk.code;
+                    constants = frame.function.chunk.constants;
+                    ip = frameIps[frameCount - 1];
+                    slots = frameSlots[frameCount - 1];
+                    break;
+                }
+                default:
+                    throw error(ip, "Unknown opcode " + code[ip - 1] + ".");
+            }
+        }
+    }
+
+    private void growFrames() {
+        int capacity = (int)Math.min((long)frameClosures.length * 2, maxDepth);
+        frameClosures = Arrays.copyOf(frameClosures, capacity);
+        frameIps = Arrays.copyOf(frameIps, capacity);
+        frameSlots = Arrays.copyOf(frameSlots, capacity);
+    }
+
+    //upvalues point into the stack by index, so moving it is safe
+    private Object[] growStack(int needed) {
+        stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+        return stack;
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private ObjUpvalue captureUpvalue(int slot) {
+        //the open list is kept sorted from the top of the stack down
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if(upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+        if(previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while(openUpvalues != null && openUpvalues.slot >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.value = stack[upvalue.slot];
+            upvalue.closed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private RuntimeError error(int ip, String message) {
+        //every byte of an instruction carries the same line, so the last
+        //one read is as good as the opcode
+        ObjFunction function = frameClosures[frameCount - 1].function;
+        return new RuntimeError(function.chunk.lines[ip - 1], message);
+    }
+
+    private void push(Object value) {
+        stack[stackTop++] = value;
+    }
+
+    //drops back to the initial sizes too, in case an overflow grew them
+    private void resetStack() {
+        frameClosures = new ObjClosure[INITIAL_FRAMES];
+        frameIps = new int[INITIAL_FRAMES];
+        frameSlots = new int[INITIAL_FRAMES];
+        stack = new Object[INITIAL_FRAMES * FRAME_SLOTS];
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private static boolean isTruthy(Object object) {
+        if(object == null) return false;
+        if(object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if(a == null && b == null) return true;
+        if(a == null) return false;
+
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if(object == null) return "nil";
+
+        if(object instanceof Double) {
+            String text = object.toString();
+            if(text.endsWith(".0")) {
+                text = text.substring(0, text.length()- 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+}
@@ -15,26 +15,27 @@ public class GenerateAST {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign : Token name, Expr value",
+            "Assign : Token name, Expr value | int depth = -1, int slot",
             "Binary : Expr left, Token operator, Expr right",
-            "Call : Expr callee, Token paren, List<Expr> arguments",
+            "Call : Expr callee, Token paren, List<Expr> arguments | Stmt.Function cachedDeclaration, LoxCallable cachedNative",
             "Grouping : Expr expression",
             "Literal : Object value",
             "Logical : Expr left, Token operator, Expr right", 
             "Unary : Token operator, Expr right",
             "Ternary : Expr condition, Token operator1, Expr thenBranch, Token operator2, Expr elseBranch",
-            "Variable : Token name"
+            "Variable : Token name | int depth = -1, int slot"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block : List<Stmt> statements",
+            "Block : List<Stmt> statements | int frameSize",
             "Expression : Expr expression",
-            "Function : Token name, List<Token> params, List<Stmt> body",
+            "Function : Token name, List<Token> params, List<Stmt> body | int frameSize, Memo memo, int calls, CompiledCode compiled, boolean deoptimized",
             "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
-            "Print : Expr expression",
-            "Return : Token keyword, Expr value",
+            "Print : Token keyword, Expr expression",
+            "Return : Token keyword, Expr value | boolean tailCall",
             "Var : Token name, Expr initializer",
-            "While : Expr condition, Stmt body",
+            "While : Expr condition, Stmt body | int backEdges, CompiledCode compiled, boolean deoptimized",
+            "For : Stmt initializer, Expr condition, Expr increment, Stmt body | int frameSize, int backEdges, CompiledCode compiled, boolean deoptimized",
             "Break : Token keyword"
         ));
     }
@@ -48,17 +49,23 @@ public class GenerateAST {
             writer.println();
             writer.println("import java.util.List;");
             writer.println();
-            writer.println("abstract class " + baseName + " {");
+            writer.println("public abstract class " + baseName + " {");
             
             defineVisitor(writer, baseName, types);
             //AST classes
             for(String type: types){
                 String className = type.split(":")[0].trim();
                 String fields= type.split(":")[1].trim();
-                defineType(writer, baseName, className, fields);
+                //anything after '|' is filled in by a later pass, e.g. the Resolver
+                String mutableFields = null;
+                if(fields.contains("|")) {
+                    mutableFields = fields.split("\\|")[1].trim();
+                    fields = fields.split("\\|")[0].trim();
+                }
+                defineType(writer, baseName, className, fields, mutableFields);
             }
             writer.println();
-            writer.println(" abstract <R> R accept(Visitor<R> visitor);");
+            writer.println(" public abstract <R> R accept(Visitor<R> visitor);");
             writer.println("}");
             writer.close();
         }
@@ -66,7 +73,7 @@ public class GenerateAST {
     private static void defineVisitor(
         PrintWriter writer, String baseName, List<String> types
     ) {
-        writer.println(" interface Visitor<R> {");
+        writer.println(" public interface Visitor<R> {");
 
         for(String type : types) {
             String typeName = type.split(":")[0].trim();
@@ -78,8 +85,8 @@ public class GenerateAST {
     }
     private static void defineType(
         PrintWriter writer, String baseName,
-        String className, String fieldList){
-            writer.println(" static class " + className + " extends " + baseName + " {");
+        String className, String fieldList, String mutableFieldList){
+            writer.println(" public static class " + className + " extends " + baseName + " {");
 
             //constructor
             writer.println("    " + className + "(" + fieldList + ") {");
@@ -96,14 +103,19 @@ public class GenerateAST {
             //Visitor pattern
             writer.println();
             writer.println("    @Override");
-            writer.println("    <R> R accept(Visitor <R> visitor) {");
+            writer.println("    public <R> R accept(Visitor <R> visitor) {");
             writer.println("    return visitor.visit" + className + baseName + "(this);");
             writer.println("    }");
 
             //fields
             writer.println();
             for(String field : fields){
-                writer.println("    final " + field + ";");
+                writer.println("    public final " + field + ";");
+            }
+            if(mutableFieldList != null) {
+                for(String field : mutableFieldList.split(", ")) {
+                    writer.println("    public " + field + ";");
+                }
             }
 
             writer.println(" }");
@@ -0,0 +1,122 @@
+package com.craftinginterpreters.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+//the embedding API, called the way a host application would
+class LoxEngineTest {
+    @Test
+    void concurrentExecutionsKeepTheirOwnBindings() throws Exception {
+        CompiledScript script = new LoxEngine().compile(
+            "fun twice(x) { return x + x; }\n" +
+            "var result = 0;\n" +
+            "for(var i = 0; i < 100; i = i + 1) result = result + twice(n);\n");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<String, Object>>> runs = new ArrayList<>();
+            for(int i = 0; i < 64; i++) {
+                int n = i;
+                runs.add(pool.submit(() -> script.execute(Map.of("n", n))));
+            }
+            for(int i = 0; i < runs.size(); i++) {
+                assertEquals(200.0 * i, runs.get(i).get().get("result"));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void resultsHoldBindingsThenDeclaredGlobals() {
+        CompiledScript script = new LoxEngine().compile(
+            "var greeting = \"hi \" + name;\n" +
+            "fun f() {}\n" +
+            "var count = 1;\n" +
+            "count = count + 1;\n" +
+            "name = \"changed\";\n" +
+            "var unset;\n");
+
+        Map<String, Object> bindings = new LinkedHashMap<>();
+        bindings.put("name", "lox");
+        Map<String, Object> results = script.execute(bindings);
+
+        assertEquals(List.of("name", "greeting", "f", "count", "unset"),
+                     new ArrayList<>(results.keySet()));
+        assertEquals("changed", results.get("name"));
+        assertEquals("hi lox", results.get("greeting"));
+        assertNotNull(results.get("f"));
+        assertEquals(2.0, results.get("count"));
+        assertEquals(null, results.get("unset"));
+    }
+
+    @Test
+    void functionsComeBackAsBindableValues() {
+        LoxEngine engine = new LoxEngine();
+        Object add = engine.compile("fun add(a, b) { return a + b; }").execute().get("add");
+        Map<String, Object> results = engine.compile("var sum = add(1, 2);")
+                                            .execute(Map.of("add", add));
+        assertEquals(3.0, results.get("sum"));
+    }
+
+    @Test
+    void printGoesToTheEnginesStream() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        new LoxEngine(out, 2).compile("print 1 + 2;\nprint \"done\";").execute();
+        assertEquals("3\ndone\n", bytes.toString(StandardCharsets.UTF_8).replace("\r\n", "\n"));
+    }
+
+    //in the command line's format, quirks included
+    @Test
+    void compileErrorListsEveryError() {
+        CompileError error = assertThrows(CompileError.class,
+            () -> new LoxEngine().compile("var = 1;\nprint 1;\nprint ;\n"));
+        assertEquals("[line 1] Error at =': Expect variable name.\n" +
+                     "[line 3] Error at ;': Expect expression.",
+                     error.getMessage());
+    }
+
+    @Test
+    void resolutionErrorsAreCompileErrors() {
+        CompileError error = assertThrows(CompileError.class,
+            () -> new LoxEngine().compile("return 1;"));
+        assertEquals("[line 1] Error at return': Can't return from top-level code.",
+                     error.getMessage());
+    }
+
+    @Test
+    void runtimeErrorCarriesItsLine() {
+        CompiledScript script = new LoxEngine().compile("var a = 1;\n\nprint a + nil;\n");
+        RuntimeError error = assertThrows(RuntimeError.class, script::execute);
+        assertEquals("Operands must be two numbers of two string.", error.getMessage());
+        assertEquals(3, error.getLine());
+    }
+
+    @Test
+    void rejectsUnsupportedBindingTypes() {
+        CompiledScript script = new LoxEngine().compile("print x;");
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+            () -> script.execute(Map.of("x", new ArrayList<String>())));
+        assertEquals("Can't bind 'x' to a java.util.ArrayList.", error.getMessage());
+    }
+
+    @Test
+    void rejectsUnknownOptimizationLevels() {
+        assertThrows(IllegalArgumentException.class, () -> new LoxEngine(System.out, 3));
+    }
+}
@@ -0,0 +1,178 @@
+package com.craftinginterpreters.lox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicContainer;
+import org.junit.jupiter.api.DynamicNode;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+//runs every script under test/scripts through the command line once per
+//mode below and checks stdout, stderr and the exit code against what the
+//script expects. Every engine and option has to give the same answers,
+//so this is the parity check between them.
+//
+//A script says what it expects in comments:
+//  // expect: TEXT            the next line of stdout is TEXT
+//  // expect error: TEXT      some line of stderr contains TEXT
+//  // expect exit: N          the exit code, 0 if not given
+//  // engines: tree closure   only run in modes on these engines
+class ScriptTest {
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static class Mode {
+        final String name;
+        final String engine;
+        final List<String> arguments;
+
+        Mode(String name, String engine, String... arguments) {
+            this.name = name;
+            this.engine = engine;
+            this.arguments = Arrays.asList(arguments);
+        }
+    }
+
+    //--cache runs each script twice, cold and then warm from the cache
+    private static final List<Mode> MODES = List.of(
+        new Mode("tree", "tree", "--engine=tree"),
+        new Mode("tiered", "tiered", "--engine=tiered"),
+        new Mode("closure", "closure", "--engine=closure"),
+        new Mode("vm", "vm", "--engine=vm"),
+        new Mode("opt1", "tree", "--opt=1"),
+        new Mode("opt2", "tree", "--opt=2"),
+        new Mode("opt2-closure", "closure", "--engine=closure", "--opt=2"),
+        new Mode("memo", "tree", "--memo"),
+        new Mode("memo-tiered", "tiered", "--engine=tiered", "--memo"),
+        new Mode("memo-closure", "closure", "--engine=closure", "--memo"),
+        new Mode("cache", "tree", "--cache"),
+        new Mode("profile", "tree", "--profile"),
+        new Mode("sample", "tiered", "--engine=tiered", "--sample=100"));
+
+    private static class Expectation {
+        final List<String> output = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        int exitCode = 0;
+        List<String> engines = null;
+    }
+
+    @TestFactory
+    Stream<DynamicNode> scripts() throws IOException {
+        Path directory = Paths.get(System.getProperty("lox.scripts"));
+        List<Path> scripts;
+        try(Stream<Path> files = Files.list(directory)) {
+            scripts = files.filter(file -> file.toString().endsWith(".lox"))
+                           .sorted()
+                           .collect(Collectors.toList());
+        }
+        assertTrue(!scripts.isEmpty(), "No scripts in " + directory);
+
+        return scripts.stream().map(script -> {
+            Expectation expected = expectation(script);
+            List<DynamicTest> tests = new ArrayList<>();
+            for(Mode mode : MODES) {
+                if(expected.engines != null && !expected.engines.contains(mode.engine)) continue;
+                tests.add(DynamicTest.dynamicTest(mode.name, () -> check(script, mode, expected)));
+            }
+            return DynamicContainer.dynamicContainer(script.getFileName().toString(), tests);
+        });
+    }
+
+    private static Expectation expectation(Path script) {
+        Expectation expected = new Expectation();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(script, StandardCharsets.UTF_8);
+        } catch(IOException error) {
+            throw new IllegalStateException(error);
+        }
+        for(String line : lines) {
+            int comment = line.indexOf("// ");
+            if(comment == -1) continue;
+            String directive = line.substring(comment + 3);
+            if(directive.startsWith("expect: ")) {
+                expected.output.add(directive.substring("expect: ".length()));
+            } else if(directive.startsWith("expect error: ")) {
+                expected.errors.add(directive.substring("expect error: ".length()));
+            } else if(directive.startsWith("expect exit: ")) {
+                expected.exitCode = Integer.parseInt(directive.substring("expect exit: ".length()).trim());
+            } else if(directive.startsWith("engines: ")) {
+                expected.engines = Arrays.asList(directive.substring("engines: ".length()).trim().split(" +"));
+            }
+        }
+        return expected;
+    }
+
+    private static void check(Path script, Mode mode, Expectation expected) throws Exception {
+        Path work = Files.createDirectories(Paths.get(System.getProperty("lox.work"), mode.name));
+        List<String> arguments = new ArrayList<>();
+        for(String argument : mode.arguments) {
+            if(argument.equals("--cache")) argument = "--cache=" + work.resolve("cache");
+            arguments.add(argument);
+        }
+        if(mode.name.equals("sample")) arguments.add("--sample-out=" + work.resolve("samples.folded"));
+
+        String name = script.getFileName() + " [" + mode.name + "]";
+        check(name, run(script, arguments, work), expected);
+        if(mode.name.equals("cache")) {
+            check(name + " warm", run(script, arguments, work), expected);
+        }
+    }
+
+    private static class Result {
+        final List<String> output;
+        final List<String> errors;
+        final int exitCode;
+
+        Result(List<String> output, List<String> errors, int exitCode) {
+            this.output = output;
+            this.errors = errors;
+            this.exitCode = exitCode;
+        }
+    }
+
+    private static Result run(Path script, List<String> arguments, Path work) throws Exception {
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        List<String> command = new ArrayList<>(List.of(java.toString(),
+            "-XX:TieredStopAtLevel=1", "-cp", System.getProperty("lox.classes"),
+            Lox.class.getName()));
+        command.addAll(arguments);
+        command.add(script.toString());
+
+        Path stdout = work.resolve("stdout.txt");
+        Path stderr = work.resolve("stderr.txt");
+        Process process = new ProcessBuilder(command)
+            .redirectOutput(stdout.toFile())
+            .redirectError(stderr.toFile())
+            .start();
+        if(!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            fail(script.getFileName() + " took longer than " + TIMEOUT_SECONDS + "s with " + arguments);
+        }
+        return new Result(Files.readAllLines(stdout, StandardCharsets.UTF_8),
+                          Files.readAllLines(stderr, StandardCharsets.UTF_8),
+                          process.exitValue());
+    }
+
+    private static void check(String name, Result actual, Expectation expected) {
+        String errors = String.join("\n", actual.errors);
+        assertEquals(expected.output, actual.output, name + " stdout; stderr was:\n" + errors);
+        for(String error : expected.errors) {
+            assertTrue(errors.contains(error), name + " stderr lacks '" + error + "':\n" + errors);
+        }
+        assertEquals(expected.exitCode, actual.exitCode, name + " exit code; stderr was:\n" + errors);
+    }
+}